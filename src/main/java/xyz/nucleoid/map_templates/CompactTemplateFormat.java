@@ -0,0 +1,344 @@
+package xyz.nucleoid.map_templates;
+
+import com.mojang.datafixers.DataFixer;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMaps;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
+import net.minecraft.commands.arguments.blocks.BlockStateParser;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.HolderGetter;
+import net.minecraft.core.HolderLookup;
+import net.minecraft.core.SectionPos;
+import net.minecraft.core.registries.Registries;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.NbtAccounter;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.NbtUtils;
+import net.minecraft.resources.Identifier;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.util.Mth;
+import net.minecraft.util.SimpleBitStorage;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.phys.Vec3;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compact binary map template format, as an alternative to the NBT format.
+ * <p>
+ * Block states are stored once in a file-wide palette of block state strings. Each section stores its own palette
+ * of indices into it along with packed index data. Entities and block entities are stored as length-prefixed NBT
+ * payloads, so they can be skipped without being parsed.
+ *
+ * <pre>
+ * int magic, int format version, int data version
+ * bounds (6 ints), biome (string), data (NBT)
+ * regions: int count, each: marker (string), bounds (6 ints), data (NBT)
+ * block states: int count, each: block state string
+ * sections: int count, each: int byte length, section
+ *   section: x, y, z (ints), byte bits, int palette size, palette (ints),
+ *            packed data (int length, longs), entities: int count, each: NBT
+ * block entities: int count, each: x, y, z (ints), NBT
+ * </pre>
+ */
+final class CompactTemplateFormat {
+    static final int MAGIC = 0x4E4D5443;
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int SECTION_SIZE = 16 * 16 * 16;
+
+    private CompactTemplateFormat() {
+    }
+
+    static void write(MapTemplate template, DataOutputStream output) throws IOException {
+        output.writeInt(MAGIC);
+        output.writeInt(FORMAT_VERSION);
+        output.writeInt(MapTemplateSerializer.getCurrentDataVersion());
+
+        writeBounds(output, template.getBounds());
+        output.writeUTF(template.biome != null ? template.biome.identifier().toString() : "");
+        writeNbt(output, template.metadata.data);
+
+        var regions = template.metadata.regions;
+        output.writeInt(regions.size());
+        for (var region : regions) {
+            output.writeUTF(region.getMarker());
+            writeBounds(output, region.getBounds());
+            writeNbt(output, region.data != null ? region.data : new CompoundTag());
+        }
+
+        var palette = new Reference2IntOpenHashMap<BlockState>();
+        palette.defaultReturnValue(-1);
+        var paletteStates = new ArrayList<BlockState>();
+        var sectionBytes = new ByteArrayOutputStream();
+        var sectionOutput = new DataOutputStream(sectionBytes);
+        var sections = new ArrayList<byte[]>(template.chunks.size());
+
+        for (var chunk : template.chunks.values()) {
+            sectionBytes.reset();
+            writeSection(sectionOutput, chunk, palette, paletteStates);
+            sectionOutput.flush();
+            sections.add(sectionBytes.toByteArray());
+        }
+
+        output.writeInt(paletteStates.size());
+        for (var state : paletteStates) {
+            output.writeUTF(BlockStateParser.serialize(state));
+        }
+
+        output.writeInt(sections.size());
+        for (var section : sections) {
+            output.writeInt(section.length);
+            output.write(section);
+        }
+
+        int blockEntityCount = 0;
+        for (var chunk : template.chunks.values()) {
+            blockEntityCount += chunk.getBlockEntities().size();
+        }
+
+        output.writeInt(blockEntityCount);
+        for (var chunk : template.chunks.values()) {
+            var pos = chunk.getPos();
+            for (var entry : Int2ObjectMaps.fastIterable(chunk.getBlockEntities())) {
+                int index = entry.getIntKey();
+                output.writeInt(pos.minBlockX() + (index & 15));
+                output.writeInt(pos.minBlockY() + (index >> 8));
+                output.writeInt(pos.minBlockZ() + (index >> 4 & 15));
+                writeNbt(output, entry.getValue());
+            }
+        }
+    }
+
+    private static void writeSection(DataOutputStream output, MapChunk chunk, Reference2IntOpenHashMap<BlockState> palette, List<BlockState> paletteStates) throws IOException {
+        var pos = chunk.getPos();
+        output.writeInt(pos.getX());
+        output.writeInt(pos.getY());
+        output.writeInt(pos.getZ());
+
+        var indices = new int[SECTION_SIZE];
+        var localStates = chunk.readBlocks(indices);
+
+        int bits = localStates.size() > 1 ? Mth.ceillog2(localStates.size()) : 0;
+        output.writeByte(bits);
+
+        output.writeInt(localStates.size());
+        for (var state : localStates) {
+            int id = palette.getInt(state);
+            if (id == -1) {
+                id = paletteStates.size();
+                palette.put(state, id);
+                paletteStates.add(state);
+            }
+            output.writeInt(id);
+        }
+
+        if (bits > 0) {
+            var storage = new SimpleBitStorage(bits, SECTION_SIZE);
+            for (int index = 0; index < SECTION_SIZE; index++) {
+                storage.set(index, indices[index]);
+            }
+
+            var data = storage.getRaw();
+            output.writeInt(data.length);
+            for (long word : data) {
+                output.writeLong(word);
+            }
+        }
+
+        var entities = chunk.getEntities();
+        output.writeInt(entities.size());
+        for (var entity : entities) {
+            writeNbt(output, entity.nbt());
+        }
+    }
+
+    static int read(MapTemplate template, DataInputStream input, HolderLookup.Provider registryLookup, DataFixer fixer, @Nullable BlockBounds filter) throws IOException {
+        if (input.readInt() != MAGIC) {
+            throw new IOException("Not a compact map template");
+        }
+
+        int formatVersion = input.readInt();
+        if (formatVersion > FORMAT_VERSION) {
+            throw new IOException("Unsupported compact map template format version " + formatVersion);
+        }
+
+        int oldVersion = input.readInt();
+        int targetVersion = MapTemplateSerializer.getCurrentDataVersion();
+        var fixCache = new DataFixCache(fixer, oldVersion, targetVersion);
+
+        var bounds = readBounds(input);
+        template.bounds = filter != null ? MapTemplateSerializer.filterBounds(bounds, filter) : bounds;
+
+        var biomeIdString = input.readUTF();
+        if (!biomeIdString.isEmpty()) {
+            var biomeId = Identifier.tryParse(biomeIdString);
+            if (biomeId != null) {
+                template.biome = ResourceKey.create(Registries.BIOME, biomeId);
+            }
+        }
+
+        var metadata = template.metadata;
+        metadata.data = readNbt(input);
+
+        int regionCount = input.readInt();
+        for (int i = 0; i < regionCount; i++) {
+            var marker = input.readUTF();
+            var regionBounds = readBounds(input);
+            metadata.regions.add(new TemplateRegion(marker, regionBounds, readNbt(input)));
+        }
+
+        var blockLookup = registryLookup.lookupOrThrow(Registries.BLOCK);
+
+        int paletteSize = input.readInt();
+        var palette = new BlockState[paletteSize];
+        for (int i = 0; i < paletteSize; i++) {
+            palette[i] = readBlockState(input.readUTF(), blockLookup, fixCache);
+        }
+
+        int sectionCount = input.readInt();
+        for (int i = 0; i < sectionCount; i++) {
+            int length = input.readInt();
+
+            var pos = SectionPos.of(input.readInt(), input.readInt(), input.readInt());
+            if (filter != null && !filter.intersects(MapTemplateSerializer.sectionBounds(pos))) {
+                // Skip the rest of the section after its position
+                input.skipNBytes(length - 3 * Integer.BYTES);
+                continue;
+            }
+
+            var chunk = readSection(input, pos, palette, fixCache, filter);
+            template.chunks.put(pos.asLong(), chunk);
+        }
+
+        int blockEntityCount = input.readInt();
+        for (int i = 0; i < blockEntityCount; i++) {
+            var pos = new BlockPos(input.readInt(), input.readInt(), input.readInt());
+            if (filter != null && !filter.contains(pos)) {
+                input.skipNBytes(input.readInt());
+                continue;
+            }
+
+            var nbt = fixCache.updateBlockEntity(readNbt(input));
+            template.setBlockEntityNbt(pos, nbt);
+        }
+
+        return oldVersion;
+    }
+
+    private static MapChunk readSection(DataInputStream input, SectionPos pos, BlockState[] palette, DataFixCache fixCache, @Nullable BlockBounds filter) throws IOException {
+        var chunk = new MapChunk(pos);
+
+        int bits = input.readUnsignedByte();
+
+        int localSize = input.readInt();
+        var localPalette = new BlockState[localSize];
+        for (int i = 0; i < localSize; i++) {
+            localPalette[i] = palette[input.readInt()];
+        }
+
+        if (bits == 0) {
+            chunk.fill(localPalette[0]);
+        } else {
+            var data = new long[input.readInt()];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = input.readLong();
+            }
+
+            // Decode the whole section at once, so the container is built without locking and counted only once
+            var indices = new int[SECTION_SIZE];
+            new SimpleBitStorage(bits, SECTION_SIZE, data).unpack(indices);
+            chunk.writeBlocks(Arrays.asList(localPalette), indices);
+        }
+
+        int entityCount = input.readInt();
+        for (int i = 0; i < entityCount; i++) {
+            var nbt = readNbt(input);
+
+            var localPos = nbt.read("Pos", Vec3.CODEC).orElse(Vec3.ZERO);
+            if (filter != null && !filter.contains(
+                    pos.minBlockX() + Mth.floor(localPos.x),
+                    pos.minBlockY() + Mth.floor(localPos.y),
+                    pos.minBlockZ() + Mth.floor(localPos.z)
+            )) {
+                continue;
+            }
+
+            nbt = fixCache.updateEntity(nbt);
+            chunk.addEntity(MapEntity.fromNbt(pos, nbt));
+        }
+
+        return chunk;
+    }
+
+    private static BlockState readBlockState(String string, HolderGetter<Block> blockLookup, DataFixCache fixCache) {
+        var nbt = new CompoundTag();
+
+        int propertiesStart = string.indexOf('[');
+        if (propertiesStart == -1) {
+            nbt.putString("Name", string);
+        } else {
+            nbt.putString("Name", string.substring(0, propertiesStart));
+
+            var properties = new CompoundTag();
+            var propertyList = string.substring(propertiesStart + 1, string.length() - 1);
+            if (!propertyList.isEmpty()) {
+                for (var property : propertyList.split(",")) {
+                    int separator = property.indexOf('=');
+                    properties.putString(property.substring(0, separator), property.substring(separator + 1));
+                }
+            }
+            nbt.put("Properties", properties);
+        }
+
+        nbt = fixCache.updateBlockState(nbt);
+        return NbtUtils.readBlockState(blockLookup, nbt);
+    }
+
+    private static void writeBounds(DataOutputStream output, BlockBounds bounds) throws IOException {
+        output.writeInt(bounds.min().getX());
+        output.writeInt(bounds.min().getY());
+        output.writeInt(bounds.min().getZ());
+        output.writeInt(bounds.max().getX());
+        output.writeInt(bounds.max().getY());
+        output.writeInt(bounds.max().getZ());
+    }
+
+    private static BlockBounds readBounds(DataInputStream input) throws IOException {
+        return new BlockBounds(
+                new BlockPos(input.readInt(), input.readInt(), input.readInt()),
+                new BlockPos(input.readInt(), input.readInt(), input.readInt())
+        );
+    }
+
+    private static void writeNbt(DataOutputStream output, @Nullable CompoundTag nbt) throws IOException {
+        if (nbt == null) {
+            output.writeInt(0);
+            return;
+        }
+
+        var bytes = new ByteArrayOutputStream();
+        try (var nbtOutput = new DataOutputStream(bytes)) {
+            NbtIo.write(nbt, nbtOutput);
+        }
+
+        output.writeInt(bytes.size());
+        bytes.writeTo(output);
+    }
+
+    @Nullable
+    private static CompoundTag readNbt(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length == 0) {
+            return null;
+        }
+        return NbtIo.read(input, NbtAccounter.unlimitedHeap());
+    }
+}
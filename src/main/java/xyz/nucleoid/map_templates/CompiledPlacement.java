@@ -0,0 +1,121 @@
+package xyz.nucleoid.map_templates;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.block.state.BlockState;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Represents a map template placement that has been compiled once, and can be placed any number of times at any
+ * origin.
+ * <p>
+ * Compiling finds every non-air block, block entity and entity of the template ahead of time, so placing the plan
+ * costs little more than the world writes themselves. When the origin is aligned to the section grid, every template
+ * section is written into a single world section in one go.
+ * <p>
+ * Instances are created with {@link MapTemplatePlacer#compile()}, are immutable, and do not reference the template
+ * they were compiled from.
+ */
+public final class CompiledPlacement {
+    private final List<Section> sections;
+    private final List<BlockEntityPrototype> blockEntities;
+    private final List<MapEntity> entities;
+    private final long blockCount;
+
+    CompiledPlacement(List<Section> sections, List<BlockEntityPrototype> blockEntities, List<MapEntity> entities) {
+        this.sections = sections;
+        this.blockEntities = blockEntities;
+        this.entities = entities;
+
+        long blockCount = 0;
+        for (var section : sections) {
+            blockCount += section.indices().length;
+        }
+        this.blockCount = blockCount;
+    }
+
+    public void placeAt(ServerLevel world, BlockPos origin) {
+        this.placeAt(world, origin, Set.of());
+    }
+
+    /**
+     * Places this plan into the world with the given origin. Blocks are always written straight into world
+     * sections, and the given flags control which updates are deferred or skipped.
+     *
+     * @param world the world to place the template in
+     * @param origin the world position that the template origin is placed at
+     * @param flags flags that control how blocks are written into the world
+     */
+    public void placeAt(ServerLevel world, BlockPos origin, Set<MapTemplatePlacer.Flag> flags) {
+        var writer = PlacementWriter.create(world, flags);
+
+        int originX = origin.getX();
+        int originY = origin.getY();
+        int originZ = origin.getZ();
+
+        if (((originX | originY | originZ) & 15) == 0) {
+            for (var section : this.sections) {
+                long sectionPos = SectionPos.asLong(section.x() + (originX >> 4), section.y() + (originY >> 4), section.z() + (originZ >> 4));
+                writer.setBlocks(sectionPos, section.indices(), section.states());
+            }
+        } else {
+            for (var section : this.sections) {
+                int minX = SectionPos.sectionToBlockCoord(section.x()) + originX;
+                int minY = SectionPos.sectionToBlockCoord(section.y()) + originY;
+                int minZ = SectionPos.sectionToBlockCoord(section.z()) + originZ;
+
+                var indices = section.indices();
+                var states = section.states();
+                for (int i = 0; i < indices.length; i++) {
+                    int index = indices[i];
+                    writer.setBlock(minX + (index & 15), minY + (index >> 8 & 15), minZ + (index >> 4 & 15), states[i]);
+                }
+            }
+        }
+
+        for (var blockEntity : this.blockEntities) {
+            writer.setBlockEntityNbt(blockEntity.pos().offset(origin), blockEntity.nbt());
+        }
+
+        writer.flush();
+
+        for (var entity : this.entities) {
+            entity.createEntities(world, origin, world::addFreshEntity);
+        }
+
+        if (flags.contains(MapTemplatePlacer.Flag.RESYNC_CHUNKS)) {
+            MapTemplatePlacer.resyncChunks(world, writer.chunks());
+        }
+    }
+
+    /**
+     * Returns the number of template sections with blocks in this plan.
+     *
+     * @return the number of sections
+     */
+    public int sectionCount() {
+        return this.sections.size();
+    }
+
+    /**
+     * Returns the number of non-air blocks that this plan places.
+     *
+     * @return the number of blocks
+     */
+    public long blockCount() {
+        return this.blockCount;
+    }
+
+    /**
+     * The non-air blocks of a template section, given by their local indices as {@code y << 8 | z << 4 | x}.
+     */
+    record Section(int x, int y, int z, short[] indices, BlockState[] states) {
+    }
+
+    record BlockEntityPrototype(BlockPos pos, CompoundTag nbt) {
+    }
+}
@@ -0,0 +1,117 @@
+package xyz.nucleoid.map_templates;
+
+import com.mojang.datafixers.DSL.TypeReference;
+import com.mojang.datafixers.DataFixer;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.util.datafix.fixes.References;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Memoizes datafixer results over the load of a single template.
+ * <p>
+ * Templates repeat the same block states in the palette of almost every chunk, and often contain many identical
+ * block entities and entities, so each distinct NBT value is only passed through the datafixer once. Block entities and
+ * entities are keyed without their position, which is what usually tells copies of them apart.
+ * <p>
+ * Instances are thread-safe, so that chunks can be loaded in parallel.
+ */
+final class DataFixCache {
+    private final DataFixer fixer;
+    private final int oldVersion;
+    private final int targetVersion;
+
+    private final Map<CompoundTag, CompoundTag> blockStates = new ConcurrentHashMap<>();
+    private final Map<CompoundTag, CompoundTag> blockEntities = new ConcurrentHashMap<>();
+    private final Map<CompoundTag, CompoundTag> entities = new ConcurrentHashMap<>();
+
+    DataFixCache(DataFixer fixer, int oldVersion, int targetVersion) {
+        this.fixer = fixer;
+        this.oldVersion = oldVersion;
+        this.targetVersion = targetVersion;
+    }
+
+    /**
+     * Updates a block state NBT. The result may be shared with other callers and must not be modified.
+     */
+    CompoundTag updateBlockState(CompoundTag nbt) {
+        if (this.targetVersion <= this.oldVersion) {
+            return nbt;
+        }
+
+        return this.update(this.blockStates, References.BLOCK_STATE, nbt);
+    }
+
+    /**
+     * Updates every block state NBT of a palette list in place.
+     */
+    void updateBlockStates(ListTag palette) {
+        for (int i = 0; i < palette.size(); i++) {
+            palette.set(i, this.updateBlockState(palette.getCompoundOrEmpty(i)));
+        }
+    }
+
+    /**
+     * Updates a block entity NBT, returning a new tag that is owned by the caller.
+     */
+    CompoundTag updateBlockEntity(CompoundTag nbt) {
+        if (this.targetVersion <= this.oldVersion) {
+            return nbt;
+        }
+
+        var key = nbt.copy();
+        key.remove("x");
+        key.remove("y");
+        key.remove("z");
+
+        var result = this.update(this.blockEntities, References.BLOCK_ENTITY, key).copy();
+        nbt.getInt("x").ifPresent(x -> result.putInt("x", x));
+        nbt.getInt("y").ifPresent(y -> result.putInt("y", y));
+        nbt.getInt("z").ifPresent(z -> result.putInt("z", z));
+        return result;
+    }
+
+    /**
+     * Updates an entity NBT, returning a new tag that is owned by the caller.
+     */
+    CompoundTag updateEntity(CompoundTag nbt) {
+        if (this.targetVersion <= this.oldVersion) {
+            return nbt;
+        }
+
+        var key = nbt.copy();
+        var pos = key.get("Pos");
+        key.remove("Pos");
+
+        var result = this.update(this.entities, References.ENTITY, key).copy();
+        if (pos != null) {
+            result.put("Pos", pos);
+        }
+        return result;
+    }
+
+    /**
+     * Updates every entity NBT of a list in place.
+     */
+    void updateEntities(ListTag entities) {
+        for (int i = 0; i < entities.size(); i++) {
+            entities.set(i, this.updateEntity(entities.getCompoundOrEmpty(i)));
+        }
+    }
+
+    private CompoundTag update(Map<CompoundTag, CompoundTag> results, TypeReference type, CompoundTag nbt) {
+        var result = results.get(nbt);
+        if (result == null) {
+            // Fix outside the map, since the datafixer is slow and would otherwise block other keys in the same bin
+            result = MapTemplateSerializer.update(nbt, this.fixer, type, this.oldVersion, this.targetVersion);
+
+            var existing = results.putIfAbsent(nbt, result);
+            if (existing != null) {
+                result = existing;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,160 @@
+package xyz.nucleoid.map_templates;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.server.level.ServerLevel;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Represents a map template placement that is spread over multiple server ticks.
+ * <p>
+ * Template sections are placed in order of their distance to a priority point, such as the spawn region, so that
+ * the area around it becomes usable first. Each call to {@link #tick()} places sections until the configured
+ * {@link Budget} is used up, after which the chunks touched in that tick are resent to the players watching them.
+ * Entities are spawned once all blocks have been placed.
+ * <p>
+ * Instances are created with {@link MapTemplatePlacer#placeIncrementally(ServerLevel, BlockPos, BlockPos, Budget)},
+ * and {@link #tick()} must be called on the server thread, usually once per server tick, until it returns
+ * {@code true}.
+ */
+public final class IncrementalPlacement {
+    private final MapTemplatePlacer placer;
+    private final BlockPos origin;
+    private final BlockBounds bounds;
+    private final Budget budget;
+
+    private final PlacementWriter writer;
+
+    private final List<MapChunk> sections;
+
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+    private int placedSections;
+    private long placedBlocks;
+
+    IncrementalPlacement(MapTemplatePlacer placer, ServerLevel world, BlockPos origin, BlockPos priority, Budget budget) {
+        this.placer = placer;
+        this.origin = origin;
+        this.budget = budget;
+        this.writer = new PlacementWriter(world);
+
+        var template = placer.template();
+        this.bounds = template.getBounds();
+
+        var sections = new ArrayList<MapChunk>(template.chunks.size());
+        for (var chunk : template.chunks.values()) {
+            if (chunk.hasBlocks() && SectionClip.intersects(this.bounds, chunk.getPos())) {
+                sections.add(chunk);
+            }
+        }
+
+        sections.sort(Comparator.comparingLong(chunk -> distanceSquared(chunk.getPos(), origin, priority)));
+        this.sections = sections;
+    }
+
+    /**
+     * Places the next sections of the template until the budget for this tick is used up.
+     *
+     * @return {@code true} once the placement is complete
+     */
+    public boolean tick() {
+        if (this.future.isDone()) {
+            return true;
+        }
+
+        try {
+            long start = System.nanoTime();
+            long blocks = 0;
+
+            while (this.placedSections < this.sections.size()) {
+                var chunk = this.sections.get(this.placedSections++);
+                blocks += MapTemplatePlacer.placeSection(this.writer, chunk, this.bounds, this.origin);
+                MapTemplatePlacer.placeBlockEntities(this.writer, chunk, this.bounds, this.origin);
+
+                if (blocks >= this.budget.maxBlocks() || System.nanoTime() - start >= this.budget.maxNanos()) {
+                    break;
+                }
+            }
+
+            // Blocks are written straight into the sections, so players already in the area only see them once resent
+            var chunks = this.writer.flush();
+            MapTemplatePlacer.resyncChunks(this.writer.world(), chunks);
+
+            this.placedBlocks += blocks;
+
+            if (this.placedSections >= this.sections.size()) {
+                this.placer.placeEntities(this.writer.world(), this.origin);
+                this.future.complete(null);
+                return true;
+            }
+
+            return false;
+        } catch (Throwable t) {
+            this.future.completeExceptionally(t);
+            throw t;
+        }
+    }
+
+    /**
+     * Returns a future that completes once every section and entity of the template has been placed.
+     *
+     * @return the completion future
+     */
+    public CompletableFuture<Void> future() {
+        return this.future;
+    }
+
+    /**
+     * Returns the fraction of template sections that have been placed so far.
+     *
+     * @return the progress between 0 and 1
+     */
+    public float progress() {
+        int total = this.sections.size();
+        return total > 0 ? (float) this.placedSections / total : 1.0F;
+    }
+
+    public int placedSections() {
+        return this.placedSections;
+    }
+
+    public int totalSections() {
+        return this.sections.size();
+    }
+
+    public long placedBlocks() {
+        return this.placedBlocks;
+    }
+
+    public boolean isDone() {
+        return this.future.isDone();
+    }
+
+    private static long distanceSquared(SectionPos pos, BlockPos origin, BlockPos priority) {
+        long dx = pos.minBlockX() + 8 + origin.getX() - priority.getX();
+        long dy = pos.minBlockY() + 8 + origin.getY() - priority.getY();
+        long dz = pos.minBlockZ() + 8 + origin.getZ() - priority.getZ();
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * Limits how much of an incremental placement is done per tick. Budgets are checked after every section, so a
+     * single tick may exceed them by up to one section.
+     *
+     * @param maxNanos the maximum time to spend per tick, in nanoseconds
+     * @param maxBlocks the maximum number of blocks to place per tick
+     */
+    public record Budget(long maxNanos, long maxBlocks) {
+        public static Budget ofMillis(long millis) {
+            return new Budget(millis * 1_000_000L, Long.MAX_VALUE);
+        }
+
+        public static Budget ofBlocks(long blocks) {
+            return new Budget(Long.MAX_VALUE, blocks);
+        }
+    }
+}
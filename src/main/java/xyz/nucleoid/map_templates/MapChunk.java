@@ -1,6 +1,10 @@
 package xyz.nucleoid.map_templates;
 
 import com.mojang.serialization.Codec;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMaps;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
 import net.minecraft.core.HolderLookup;
 import net.minecraft.core.SectionPos;
 import net.minecraft.nbt.*;
@@ -11,11 +15,15 @@ import net.minecraft.world.level.block.state.BlockState;
 import net.minecraft.world.level.chunk.PalettedContainer;
 import net.minecraft.world.level.chunk.Strategy;
 import net.minecraft.world.phys.Vec3;
+import org.jetbrains.annotations.Nullable;
+
 import java.util.ArrayList;
 import java.util.List;
 
 public final class MapChunk {
     private static final BlockState DEFAULT_BLOCK = Blocks.AIR.defaultBlockState();
+    private static final int SECTION_SIZE = 16 * 16 * 16;
+
     private static final Strategy<BlockState> PALETTE_PROVIDER = Strategy.createForBlockStates(Block.BLOCK_STATE_REGISTRY);
 
     private static final Codec<PalettedContainer<BlockState>> BLOCK_CODEC = PalettedContainer.codecRW(BlockState.CODEC, PALETTE_PROVIDER, DEFAULT_BLOCK);
@@ -23,20 +31,388 @@ public final class MapChunk {
     private final SectionPos pos;
 
     private PalettedContainer<BlockState> container = new PalettedContainer<>(DEFAULT_BLOCK, PALETTE_PROVIDER);
-    private final List<MapEntity> entities = new ArrayList<>();
+    private List<MapEntity> entities = new ArrayList<>();
+
+    private int nonAirCount;
+
+    // The number of distinct states in the container, or -1 if it needs to be counted again after a change
+    private int stateCount = -1;
+
+    // Keyed by the local index of the block, and only allocated once this chunk has a block entity
+    @Nullable
+    private Int2ObjectMap<CompoundTag> blockEntities;
+
+    private boolean frozen;
+
+    // The template that handed this chunk out for direct modification, and must be told when its blocks change
+    @Nullable
+    MapTemplate owner;
 
     MapChunk(SectionPos pos) {
         this.pos = pos;
     }
 
     public void set(int x, int y, int z, BlockState state) {
-        this.container.set(x, y, z, state);
+        this.checkMutable();
+
+        var previous = this.container.getAndSet(x, y, z, state);
+        if (previous.isAir() != state.isAir()) {
+            this.nonAirCount += state.isAir() ? -1 : 1;
+        }
+
+        this.markModified();
     }
 
     public BlockState get(int x, int y, int z) {
         return this.container.get(x, y, z);
     }
 
+    /**
+     * Replaces every block in this chunk with the given state, using a single-value container.
+     *
+     * @param state the state to fill this chunk with
+     */
+    void fill(BlockState state) {
+        this.checkMutable();
+        this.container = new PalettedContainer<>(state, PALETTE_PROVIDER);
+        this.nonAirCount = state.isAir() ? 0 : SECTION_SIZE;
+        this.markModified();
+    }
+
+    /**
+     * Replaces the block container of this chunk with the given container, which must not be shared.
+     *
+     * @param container the container to adopt
+     */
+    void setContainer(PalettedContainer<BlockState> container) {
+        this.checkMutable();
+        this.container = container;
+        this.recountBlocks();
+        this.markModified();
+    }
+
+    /**
+     * Sets every block within the given box of local coordinates, clamped to this chunk. A box that covers the whole
+     * chunk replaces it with a single-value container.
+     *
+     * @param minX the minimum local X-coordinate, inclusive
+     * @param minY the minimum local Y-coordinate, inclusive
+     * @param minZ the minimum local Z-coordinate, inclusive
+     * @param maxX the maximum local X-coordinate, inclusive
+     * @param maxY the maximum local Y-coordinate, inclusive
+     * @param maxZ the maximum local Z-coordinate, inclusive
+     * @param state the state to fill the box with
+     */
+    public void fill(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, BlockState state) {
+        if (minX <= 0 && minY <= 0 && minZ <= 0 && maxX >= 15 && maxY >= 15 && maxZ >= 15) {
+            this.fill(state);
+            return;
+        }
+
+        for (int y = Math.max(minY, 0); y <= Math.min(maxY, 15); y++) {
+            for (int z = Math.max(minZ, 0); z <= Math.min(maxZ, 15); z++) {
+                for (int x = Math.max(minX, 0); x <= Math.min(maxX, 15); x++) {
+                    this.set(x, y, z, state);
+                }
+            }
+        }
+    }
+
+    /**
+     * Calls the given visitor for every non-air block in this chunk, with local coordinates.
+     *
+     * @param visitor the visitor to call for every block
+     */
+    public void forEachBlock(BlockVisitor visitor) {
+        if (!this.hasBlocks()) {
+            return;
+        }
+
+        var container = this.container;
+        for (int y = 0; y < 16; y++) {
+            for (int z = 0; z < 16; z++) {
+                for (int x = 0; x < 16; x++) {
+                    var state = container.get(x, y, z);
+                    if (!state.isAir()) {
+                        visitor.accept(x, y, z, state);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads every block of this chunk as an index into a palette, in the order {@code y << 8 | z << 4 | x}.
+     *
+     * @param indices the array of length 4096 to write the palette index of every block to
+     * @return the palette that the indices refer to
+     */
+    public List<BlockState> readBlocks(int[] indices) {
+        checkLength(indices.length);
+
+        var palette = new ArrayList<BlockState>();
+        var paletteIds = new Reference2IntOpenHashMap<BlockState>();
+        paletteIds.defaultReturnValue(-1);
+
+        for (int index = 0; index < SECTION_SIZE; index++) {
+            indices[index] = paletteId(this.container.get(index & 15, index >> 8, index >> 4 & 15), palette, paletteIds);
+        }
+
+        return palette;
+    }
+
+    /**
+     * Reads every block of this chunk as an index into a palette, in the order {@code y << 8 | z << 4 | x}.
+     *
+     * @param indices the array of length 4096 to write the palette index of every block to
+     * @return the palette that the indices refer to
+     */
+    public List<BlockState> readBlocks(short[] indices) {
+        checkLength(indices.length);
+
+        var palette = new ArrayList<BlockState>();
+        var paletteIds = new Reference2IntOpenHashMap<BlockState>();
+        paletteIds.defaultReturnValue(-1);
+
+        for (int index = 0; index < SECTION_SIZE; index++) {
+            indices[index] = (short) paletteId(this.container.get(index & 15, index >> 8, index >> 4 & 15), palette, paletteIds);
+        }
+
+        return palette;
+    }
+
+    private static int paletteId(BlockState state, List<BlockState> palette, Reference2IntOpenHashMap<BlockState> paletteIds) {
+        int id = paletteIds.getInt(state);
+        if (id == -1) {
+            id = palette.size();
+            palette.add(state);
+            paletteIds.put(state, id);
+        }
+        return id;
+    }
+
+    /**
+     * Replaces every block of this chunk with the given palette indices, in the order {@code y << 8 | z << 4 | x}.
+     *
+     * @param palette the palette that the indices refer to
+     * @param indices the array of length 4096 holding the palette index of every block
+     */
+    public void writeBlocks(List<BlockState> palette, int[] indices) {
+        checkLength(indices.length);
+
+        var states = palette.toArray(BlockState[]::new);
+        if (states.length == 1) {
+            this.fill(states[0]);
+            return;
+        }
+
+        this.checkMutable();
+
+        // The container isn't shared until it is swapped in, so it can be written without locking
+        var container = new PalettedContainer<>(DEFAULT_BLOCK, PALETTE_PROVIDER);
+        for (int index = 0; index < SECTION_SIZE; index++) {
+            container.getAndSetUnchecked(index & 15, index >> 8, index >> 4 & 15, states[indices[index]]);
+        }
+
+        this.container = container;
+        this.recountBlocks();
+        this.markModified();
+    }
+
+    /**
+     * Replaces every block of this chunk with the given palette indices, in the order {@code y << 8 | z << 4 | x}.
+     *
+     * @param palette the palette that the indices refer to
+     * @param indices the array of length 4096 holding the palette index of every block
+     */
+    public void writeBlocks(List<BlockState> palette, short[] indices) {
+        checkLength(indices.length);
+
+        var states = palette.toArray(BlockState[]::new);
+        if (states.length == 1) {
+            this.fill(states[0]);
+            return;
+        }
+
+        this.checkMutable();
+
+        var container = new PalettedContainer<>(DEFAULT_BLOCK, PALETTE_PROVIDER);
+        for (int index = 0; index < SECTION_SIZE; index++) {
+            container.getAndSetUnchecked(index & 15, index >> 8, index >> 4 & 15, states[indices[index]]);
+        }
+
+        this.container = container;
+        this.recountBlocks();
+        this.markModified();
+    }
+
+    private static void checkLength(int length) {
+        if (length != SECTION_SIZE) {
+            throw new IllegalArgumentException("Expected " + SECTION_SIZE + " block indices, got " + length);
+        }
+    }
+
+    /**
+     * Returns the number of non-air blocks in this chunk.
+     *
+     * @return the number of non-air blocks
+     */
+    public int getNonAirCount() {
+        return this.nonAirCount;
+    }
+
+    /**
+     * Returns whether this chunk contains any non-air blocks. Loops over template blocks use this to skip sections
+     * that are entirely air.
+     *
+     * @return {@code true} if this chunk has at least one non-air block
+     */
+    public boolean hasBlocks() {
+        return this.nonAirCount > 0;
+    }
+
+    public boolean hasEntities() {
+        return !this.entities.isEmpty();
+    }
+
+    /**
+     * Returns whether this chunk has neither blocks, block entities nor entities.
+     *
+     * @return {@code true} if this chunk is empty
+     */
+    public boolean isEmpty() {
+        return !this.hasBlocks() && !this.hasEntities() && !this.hasBlockEntities();
+    }
+
+    private void recountBlocks() {
+        this.nonAirCount = 0;
+        this.container.count((state, count) -> {
+            if (!state.isAir()) {
+                this.nonAirCount += count;
+            }
+        });
+    }
+
+    /**
+     * Copies every non-air block of the given chunk into this chunk at the same local position.
+     *
+     * @param source the chunk to copy blocks from
+     */
+    void mergeBlocksFrom(MapChunk source) {
+        this.checkMutable();
+
+        if (!source.hasBlocks()) {
+            return;
+        }
+
+        // When this chunk is all air, the result is exactly the source blocks
+        if (!this.hasBlocks()) {
+            this.container = source.container.copy();
+            this.nonAirCount = source.nonAirCount;
+            this.markModified();
+            return;
+        }
+
+        for (int y = 0; y < 16; y++) {
+            for (int z = 0; z < 16; z++) {
+                for (int x = 0; x < 16; x++) {
+                    var state = source.get(x, y, z);
+                    if (!state.isAir()) {
+                        this.set(x, y, z, state);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the block entity NBT at the given local position without copying it. The returned tag must not be
+     * modified.
+     */
+    @Nullable
+    CompoundTag getBlockEntityNbt(int x, int y, int z) {
+        var blockEntities = this.blockEntities;
+        return blockEntities != null ? blockEntities.get(index(x, y, z)) : null;
+    }
+
+    /**
+     * Sets or removes the block entity NBT at the given local position. The tag is stored without being copied.
+     */
+    void setBlockEntityNbt(int x, int y, int z, @Nullable CompoundTag nbt) {
+        this.checkMutable();
+
+        if (nbt != null) {
+            if (this.blockEntities == null) {
+                this.blockEntities = new Int2ObjectOpenHashMap<>();
+            }
+            this.blockEntities.put(index(x, y, z), nbt);
+        } else if (this.blockEntities != null) {
+            this.blockEntities.remove(index(x, y, z));
+        }
+    }
+
+    /**
+     * Removes every block entity within the given box of local coordinates.
+     */
+    void removeBlockEntities(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        if (!this.hasBlockEntities()) {
+            return;
+        }
+
+        this.checkMutable();
+
+        var iterator = this.blockEntities.keySet().iterator();
+        while (iterator.hasNext()) {
+            int index = iterator.nextInt();
+            int x = index & 15;
+            int y = index >> 8 & 15;
+            int z = index >> 4 & 15;
+            if (x >= minX && y >= minY && z >= minZ && x <= maxX && y <= maxY && z <= maxZ) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the block entities in this chunk, keyed by their local index as {@code y << 8 | z << 4 | x}. The
+     * returned map must not be modified.
+     */
+    Int2ObjectMap<CompoundTag> getBlockEntities() {
+        var blockEntities = this.blockEntities;
+        return blockEntities != null ? blockEntities : Int2ObjectMaps.emptyMap();
+    }
+
+    boolean hasBlockEntities() {
+        var blockEntities = this.blockEntities;
+        return blockEntities != null && !blockEntities.isEmpty();
+    }
+
+    /**
+     * Copies every block entity of the given chunk into this chunk at the same local position, keeping any block
+     * entity that this chunk already has there.
+     *
+     * @param source the chunk to copy block entities from
+     */
+    void mergeBlockEntitiesFrom(MapChunk source) {
+        if (!source.hasBlockEntities()) {
+            return;
+        }
+
+        this.checkMutable();
+
+        if (this.blockEntities == null) {
+            this.blockEntities = new Int2ObjectOpenHashMap<>(source.blockEntities.size());
+        }
+
+        for (var entry : Int2ObjectMaps.fastIterable(source.blockEntities)) {
+            this.blockEntities.putIfAbsent(entry.getIntKey(), entry.getValue());
+        }
+    }
+
+    static int index(int x, int y, int z) {
+        return y << 8 | z << 4 | x;
+    }
+
     /**
      * Adds an entity to this chunk.
      * <p>
@@ -46,6 +422,8 @@ public final class MapChunk {
      * @param position The entity position relative to the map.
      */
     public void addEntity(Entity entity, Vec3 position) {
+        this.checkMutable();
+
         var mapEntity = MapEntity.fromEntity(entity, position);
         if (mapEntity != null) {
             this.entities.add(mapEntity);
@@ -53,9 +431,155 @@ public final class MapChunk {
     }
 
     public void addEntity(MapEntity entity) {
+        this.checkMutable();
         this.entities.add(entity);
     }
 
+    /**
+     * Makes this chunk immutable, so that it can be shared between templates and read from multiple threads.
+     * Frozen chunks are copied with {@link MapChunk#copy()} before being modified.
+     */
+    void freeze() {
+        if (!this.frozen) {
+            this.entities = List.copyOf(this.entities);
+
+            // Callers of setBlockEntityNbt may still hold on to the tags they passed in
+            if (this.blockEntities != null) {
+                for (var entry : Int2ObjectMaps.fastIterable(this.blockEntities)) {
+                    entry.setValue(entry.getValue().copy());
+                }
+            }
+
+            this.frozen = true;
+        }
+    }
+
+    public boolean isFrozen() {
+        return this.frozen;
+    }
+
+    /**
+     * Creates a mutable copy of this chunk.
+     *
+     * @return the copied chunk
+     */
+    MapChunk copy() {
+        var chunk = new MapChunk(this.pos);
+        chunk.container = this.container.copy();
+        chunk.nonAirCount = this.nonAirCount;
+        chunk.stateCount = this.stateCount;
+        chunk.entities.addAll(this.entities);
+
+        // Block entity NBT is never modified in place, so it is safe to share
+        if (this.blockEntities != null) {
+            chunk.blockEntities = new Int2ObjectOpenHashMap<>(this.blockEntities);
+        }
+
+        return chunk;
+    }
+
+    private void markModified() {
+        this.stateCount = -1;
+
+        var owner = this.owner;
+        if (owner != null) {
+            owner.chunkModCount++;
+        }
+    }
+
+    private void checkMutable() {
+        if (this.frozen) {
+            throw new IllegalStateException("Cannot modify frozen chunk at " + this.pos);
+        }
+    }
+
+    /**
+     * Reclaims memory left behind by edits. The block container is re-packed to the smallest palette that fits the
+     * states still in use, since containers never shrink their palette on their own, and the entity list and block
+     * entity map are trimmed to their size.
+     */
+    void compact() {
+        this.checkMutable();
+
+        var container = this.container;
+
+        var distinct = new ArrayList<BlockState>();
+        container.count((state, count) -> distinct.add(state));
+        this.stateCount = distinct.size();
+
+        if (distinct.size() == 1) {
+            this.container = new PalettedContainer<>(distinct.getFirst(), PALETTE_PROVIDER);
+        } else {
+            var repacked = new PalettedContainer<>(container.get(0, 0, 0), PALETTE_PROVIDER);
+            for (int y = 0; y < 16; y++) {
+                for (int z = 0; z < 16; z++) {
+                    for (int x = 0; x < 16; x++) {
+                        repacked.getAndSetUnchecked(x, y, z, container.get(x, y, z));
+                    }
+                }
+            }
+
+            if (repacked.getSerializedSize() < container.getSerializedSize()) {
+                this.container = repacked;
+            }
+        }
+
+        this.entities = new ArrayList<>(this.entities);
+
+        if (this.blockEntities != null) {
+            if (this.blockEntities.isEmpty()) {
+                this.blockEntities = null;
+            } else if (this.blockEntities instanceof Int2ObjectOpenHashMap<CompoundTag> map) {
+                map.trim();
+            }
+        }
+    }
+
+    /**
+     * Estimates the memory used by the block container of this chunk, in bytes.
+     *
+     * @return the estimated size in bytes
+     */
+    long estimateBlockSize() {
+        return this.container.getSerializedSize();
+    }
+
+    /**
+     * Returns the number of distinct block states used in this chunk, which may be less than the size of the
+     * container palette. The count is cached until the blocks of this chunk change, so only the first call after a
+     * change scans all 4096 blocks.
+     *
+     * @return the number of distinct states
+     */
+    int countStates() {
+        int stateCount = this.stateCount;
+        if (stateCount < 0) {
+            // Racing readers of a frozen chunk can only ever store the same count
+            var states = new int[1];
+            this.container.count((state, count) -> states[0]++);
+            this.stateCount = stateCount = states[0];
+        }
+        return stateCount;
+    }
+
+    /**
+     * Estimates the memory used by the blocks, block entities and entities of this chunk, in bytes.
+     *
+     * @return the estimated size in bytes
+     */
+    long estimateSize() {
+        long size = this.estimateBlockSize();
+        for (var entity : this.entities) {
+            size += entity.nbt().sizeInBytes();
+        }
+        if (this.blockEntities != null) {
+            for (var nbt : this.blockEntities.values()) {
+                size += nbt.sizeInBytes();
+            }
+        }
+        return size;
+    }
+
     public SectionPos getPos() {
         return this.pos;
     }
@@ -87,6 +611,7 @@ public final class MapChunk {
 
         if (container.isPresent()) {
             chunk.container = container.get();
+            chunk.recountBlocks();
         }
 
         var entitiesNbt = nbt.getListOrEmpty("entities");
@@ -98,4 +623,12 @@ public final class MapChunk {
 
         return chunk;
     }
+
+    /**
+     * Visits blocks by their coordinates, without allocating a position for every block.
+     */
+    @FunctionalInterface
+    public interface BlockVisitor {
+        void accept(int x, int y, int z, BlockState state);
+    }
 }
@@ -43,7 +43,10 @@ public record MapEntity(Vec3 position, CompoundTag nbt) {
     }
 
     public void createEntities(Level world, BlockPos origin, Consumer<Entity> consumer) {
-        var nbt = this.createEntityNbt(origin);
+        loadEntities(world, this.createEntityNbt(origin), consumer);
+    }
+
+    static void loadEntities(Level world, CompoundTag nbt, Consumer<Entity> consumer) {
         EntityType.loadEntityRecursive(nbt, world, new EntitySpawnRequest(EntitySpawnReason.STRUCTURE, true), entity -> {
             consumer.accept(entity);
             return entity;
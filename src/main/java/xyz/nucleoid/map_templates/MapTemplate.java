@@ -3,6 +3,7 @@ package xyz.nucleoid.map_templates;
 import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
 import net.minecraft.core.BlockPos;
 import net.minecraft.core.HolderLookup;
 import net.minecraft.core.SectionPos;
@@ -10,6 +11,7 @@ import net.minecraft.nbt.CompoundTag;
 import net.minecraft.resources.ResourceKey;
 import net.minecraft.resources.Identifier;
 import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerLevel;
 import net.minecraft.util.Mth;
 import net.minecraft.util.ProblemReporter;
 import net.minecraft.world.entity.Entity;
@@ -28,6 +30,12 @@ import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 
 /**
@@ -36,14 +44,18 @@ import java.util.stream.Stream;
  * A map template stores serialized chunks, block entities, entities, the bounds, the biome, and regions.
  * <p>
  * It can be loaded from resources with {@link MapTemplateSerializer#loadFromResource(MinecraftServer, Identifier)}.
+ * <p>
+ * A template can be {@link MapTemplate#freeze() frozen} into an immutable snapshot that can be shared and read from
+ * multiple threads, and then modified through {@link MapTemplate#copyOnWrite() copy-on-write} children.
  */
 public final class MapTemplate {
     private static final Logger LOGGER = LoggerFactory.getLogger(MapTemplate.class);
 
     private static final BlockState AIR = Blocks.AIR.defaultBlockState();
 
+    private static final int PARALLEL_BATCH_SIZE = 16;
+
     final Long2ObjectMap<MapChunk> chunks = new Long2ObjectOpenHashMap<>();
-    final Long2ObjectMap<CompoundTag> blockEntities = new Long2ObjectOpenHashMap<>();
 
     ResourceKey<Biome> biome = Biomes.THE_VOID;
 
@@ -52,6 +64,14 @@ public final class MapTemplate {
 
     MapTemplateMetadata metadata = new MapTemplateMetadata();
 
+    @Nullable
+    private TemplateHeightmaps heightmaps;
+
+    // Bumped whenever a chunk that was handed out for direct modification has its blocks changed
+    int chunkModCount;
+
+    private boolean frozen;
+
     private MapTemplate() {
     }
 
@@ -59,12 +79,44 @@ public final class MapTemplate {
         return new MapTemplate();
     }
 
+    /**
+     * Captures the blocks, block entities and entities within the given bounds of a world into a new template. The
+     * template keeps everything at its world position, and its bounds are the given bounds.
+     * <p>
+     * This must be called on the server thread.
+     *
+     * @param world the world to capture
+     * @param bounds the world bounds to capture
+     * @return the captured template
+     */
+    public static MapTemplate capture(ServerLevel world, BlockBounds bounds) {
+        return TemplateCapture.snapshot(world, bounds).build();
+    }
+
+    /**
+     * Captures a world area like {@link #capture(ServerLevel, BlockBounds)}, but only copies the world sections and
+     * serializes the block entities and entities on the calling thread. The template is then built on the given
+     * executor.
+     * <p>
+     * This must be called on the server thread.
+     *
+     * @param world the world to capture
+     * @param bounds the world bounds to capture
+     * @param executor the executor to build the template on
+     * @return a future of the captured template
+     */
+    public static CompletableFuture<MapTemplate> captureAsync(ServerLevel world, BlockBounds bounds, Executor executor) {
+        var capture = TemplateCapture.snapshot(world, bounds);
+        return CompletableFuture.supplyAsync(capture::build, executor);
+    }
+
     /**
      * Sets the biome key of the map template.
      *
      * @param biome The biome key.
      */
     public void setBiome(ResourceKey<Biome> biome) {
+        this.checkMutable();
         this.biome = biome;
     }
 
@@ -88,10 +140,24 @@ public final class MapTemplate {
     }
 
     public void setBlockState(BlockPos pos, BlockState state) {
-        var chunk = this.getOrCreateChunk(chunkPos(pos));
+        this.checkMutable();
+
+        var heightmaps = this.heightmaps;
+        int modCount = this.chunkModCount;
+
+        var chunk = this.obtainChunk(chunkPos(pos));
         chunk.set(pos.getX() & 15, pos.getY() & 15, pos.getZ() & 15, state);
 
         this.generatedBounds = null;
+
+        if (heightmaps != null) {
+            heightmaps.invalidateColumn(pos.getX(), pos.getZ());
+
+            // This write is already accounted for, so only writes made elsewhere should drop the index
+            if (heightmaps.modCount == modCount) {
+                heightmaps.modCount = this.chunkModCount;
+            }
+        }
     }
 
     public void setBlockEntity(BlockPos pos, @Nullable BlockEntity entity, HolderLookup.Provider registryLookup) {
@@ -108,14 +174,20 @@ public final class MapTemplate {
     }
 
     public void setBlockEntityNbt(BlockPos pos, @Nullable CompoundTag entityNbt) {
+        this.checkMutable();
+
         if (entityNbt != null) {
             entityNbt.putInt("x", pos.getX());
             entityNbt.putInt("y", pos.getY());
             entityNbt.putInt("z", pos.getZ());
 
-            this.blockEntities.put(pos.asLong(), entityNbt);
+            this.obtainChunk(chunkPos(pos)).setBlockEntityNbt(pos.getX() & 15, pos.getY() & 15, pos.getZ() & 15, entityNbt);
         } else {
-            this.blockEntities.remove(pos.asLong());
+            long chunkPos = chunkPos(pos);
+            var chunk = this.chunks.get(chunkPos);
+            if (chunk != null && chunk.getBlockEntityNbt(pos.getX() & 15, pos.getY() & 15, pos.getZ() & 15) != null) {
+                this.thawChunk(chunkPos, chunk).setBlockEntityNbt(pos.getX() & 15, pos.getY() & 15, pos.getZ() & 15, null);
+            }
         }
     }
 
@@ -127,12 +199,268 @@ public final class MapTemplate {
         return AIR;
     }
 
+    /**
+     * Calls the given visitor for every non-air block within the given bounds, without allocating a position for
+     * every block.
+     *
+     * @param bounds the bounds to visit the blocks within
+     * @param visitor the visitor to call with the template coordinates of every block
+     */
+    public void forEachBlock(BlockBounds bounds, MapChunk.BlockVisitor visitor) {
+        this.forEachChunkIn(bounds, chunk -> {
+            if (!chunk.hasBlocks()) {
+                return;
+            }
+
+            var pos = chunk.getPos();
+            int originX = pos.minBlockX();
+            int originY = pos.minBlockY();
+            int originZ = pos.minBlockZ();
+
+            var clip = SectionClip.of(bounds, pos);
+
+            for (int y = clip.minY(); y <= clip.maxY(); y++) {
+                for (int z = clip.minZ(); z <= clip.maxZ(); z++) {
+                    for (int x = clip.minX(); x <= clip.maxX(); x++) {
+                        var state = chunk.get(x, y, z);
+                        if (!state.isAir()) {
+                            visitor.accept(originX + x, originY + y, originZ + z, state);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads every block within the given bounds as an index into a palette. Blocks are ordered by X, then Z, then Y,
+     * so the block at {@code (x, y, z)} is at index {@code ((y - minY) * sizeZ + (z - minZ)) * sizeX + (x - minX)}.
+     *
+     * @param bounds the bounds to read the blocks within
+     * @param indices the array to write the palette index of every block to, with one entry for every block
+     * @return the palette that the indices refer to, which always starts with air
+     */
+    public List<BlockState> getBlockStates(BlockBounds bounds, int[] indices) {
+        checkLength(bounds, indices.length);
+
+        var palette = new ArrayList<BlockState>();
+        palette.add(AIR);
+
+        var paletteIds = new Reference2IntOpenHashMap<BlockState>();
+        paletteIds.put(AIR, 0);
+        paletteIds.defaultReturnValue(-1);
+
+        // Anything not covered by a chunk is air
+        Arrays.fill(indices, 0);
+
+        var min = bounds.min();
+        var max = bounds.max();
+        int sizeX = max.getX() - min.getX() + 1;
+        int sizeZ = max.getZ() - min.getZ() + 1;
+
+        this.forEachChunkIn(bounds, chunk -> {
+            if (!chunk.hasBlocks()) {
+                return;
+            }
+
+            var pos = chunk.getPos();
+            int originX = pos.minBlockX();
+            int originY = pos.minBlockY();
+            int originZ = pos.minBlockZ();
+
+            var clip = SectionClip.of(bounds, pos);
+
+            for (int y = clip.minY(); y <= clip.maxY(); y++) {
+                for (int z = clip.minZ(); z <= clip.maxZ(); z++) {
+                    int row = ((originY + y - min.getY()) * sizeZ + (originZ + z - min.getZ())) * sizeX - min.getX() + originX;
+                    for (int x = clip.minX(); x <= clip.maxX(); x++) {
+                        var state = chunk.get(x, y, z);
+                        int id = paletteIds.getInt(state);
+                        if (id == -1) {
+                            id = palette.size();
+                            palette.add(state);
+                            paletteIds.put(state, id);
+                        }
+                        indices[row + x] = id;
+                    }
+                }
+            }
+        });
+
+        return palette;
+    }
+
+    /**
+     * Replaces every block within the given bounds with the given palette indices, ordered as in
+     * {@link #getBlockStates(BlockBounds, int[])}. Chunks are only looked up once for every section that the bounds
+     * cover, and chunks are not created for sections that would only be written with air.
+     *
+     * @param bounds the bounds to write the blocks within
+     * @param palette the palette that the indices refer to
+     * @param indices the palette index of every block, with one entry for every block
+     */
+    public void setBlockStates(BlockBounds bounds, List<BlockState> palette, int[] indices) {
+        this.checkMutable();
+        checkLength(bounds, indices.length);
+
+        var states = palette.toArray(BlockState[]::new);
+
+        var min = bounds.min();
+        var max = bounds.max();
+        int sizeX = max.getX() - min.getX() + 1;
+        int sizeZ = max.getZ() - min.getZ() + 1;
+
+        for (int chunkY = min.getY() >> 4; chunkY <= max.getY() >> 4; chunkY++) {
+            for (int chunkZ = min.getZ() >> 4; chunkZ <= max.getZ() >> 4; chunkZ++) {
+                for (int chunkX = min.getX() >> 4; chunkX <= max.getX() >> 4; chunkX++) {
+                    long chunkPos = SectionPos.asLong(chunkX, chunkY, chunkZ);
+                    var chunk = this.chunks.get(chunkPos);
+                    if (chunk != null) {
+                        chunk = this.thawChunk(chunkPos, chunk);
+                    }
+
+                    int originX = SectionPos.sectionToBlockCoord(chunkX);
+                    int originY = SectionPos.sectionToBlockCoord(chunkY);
+                    int originZ = SectionPos.sectionToBlockCoord(chunkZ);
+
+                    var clip = SectionClip.of(bounds, chunkX, chunkY, chunkZ);
+
+                    for (int y = clip.minY(); y <= clip.maxY(); y++) {
+                        for (int z = clip.minZ(); z <= clip.maxZ(); z++) {
+                            int row = ((originY + y - min.getY()) * sizeZ + (originZ + z - min.getZ())) * sizeX - min.getX() + originX;
+                            for (int x = clip.minX(); x <= clip.maxX(); x++) {
+                                var state = states[indices[row + x]];
+                                if (chunk == null) {
+                                    if (state.isAir()) {
+                                        continue;
+                                    }
+                                    chunk = this.obtainChunk(chunkPos);
+                                }
+                                chunk.set(x, y, z, state);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        this.generatedBounds = null;
+        this.heightmaps = null;
+    }
+
+    /**
+     * Fills every block within the given bounds with the given state, and removes the block entities within them.
+     * <p>
+     * Sections that are fully covered by the bounds are replaced with a single-value container, or dropped entirely
+     * when cleared, so only the sections at the edges of the bounds are written block by block.
+     *
+     * @param bounds the bounds to fill
+     * @param state the state to fill the bounds with
+     */
+    public void fill(BlockBounds bounds, BlockState state) {
+        this.checkMutable();
+
+        boolean air = state.isAir();
+
+        var min = bounds.min();
+        var max = bounds.max();
+
+        for (int chunkY = min.getY() >> 4; chunkY <= max.getY() >> 4; chunkY++) {
+            for (int chunkZ = min.getZ() >> 4; chunkZ <= max.getZ() >> 4; chunkZ++) {
+                for (int chunkX = min.getX() >> 4; chunkX <= max.getX() >> 4; chunkX++) {
+                    long chunkPos = SectionPos.asLong(chunkX, chunkY, chunkZ);
+                    var chunk = this.chunks.get(chunkPos);
+                    if (chunk == null && air) {
+                        continue;
+                    }
+
+                    var clip = SectionClip.of(bounds, chunkX, chunkY, chunkZ);
+                    if (clip.coversSection() && air && !chunk.hasEntities()) {
+                        this.chunks.remove(chunkPos);
+                        continue;
+                    }
+
+                    chunk = chunk != null ? this.thawChunk(chunkPos, chunk) : this.obtainChunk(chunkPos);
+                    chunk.removeBlockEntities(clip.minX(), clip.minY(), clip.minZ(), clip.maxX(), clip.maxY(), clip.maxZ());
+
+                    if (!air || chunk.hasBlocks()) {
+                        chunk.fill(clip.minX(), clip.minY(), clip.minZ(), clip.maxX(), clip.maxY(), clip.maxZ(), state);
+                    }
+                }
+            }
+        }
+
+        this.generatedBounds = null;
+        this.heightmaps = null;
+    }
+
+    /**
+     * Clears every block and block entity within the given bounds, like {@link #fill(BlockBounds, BlockState)} with
+     * air.
+     *
+     * @param bounds the bounds to clear
+     */
+    public void clear(BlockBounds bounds) {
+        this.fill(bounds, AIR);
+    }
+
+    private void forEachChunkIn(BlockBounds bounds, Consumer<MapChunk> consumer) {
+        var min = bounds.min();
+        var max = bounds.max();
+
+        long sections = (long) ((max.getX() >> 4) - (min.getX() >> 4) + 1)
+                * ((max.getY() >> 4) - (min.getY() >> 4) + 1)
+                * ((max.getZ() >> 4) - (min.getZ() >> 4) + 1);
+
+        // Sparse templates within large bounds are cheaper to scan by their chunks than by every section position
+        if (sections > this.chunks.size()) {
+            for (var chunk : this.chunks.values()) {
+                if (SectionClip.intersects(bounds, chunk.getPos())) {
+                    consumer.accept(chunk);
+                }
+            }
+        } else {
+            for (int chunkY = min.getY() >> 4; chunkY <= max.getY() >> 4; chunkY++) {
+                for (int chunkZ = min.getZ() >> 4; chunkZ <= max.getZ() >> 4; chunkZ++) {
+                    for (int chunkX = min.getX() >> 4; chunkX <= max.getX() >> 4; chunkX++) {
+                        var chunk = this.chunks.get(SectionPos.asLong(chunkX, chunkY, chunkZ));
+                        if (chunk != null) {
+                            consumer.accept(chunk);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void checkLength(BlockBounds bounds, int length) {
+        var min = bounds.min();
+        var max = bounds.max();
+        long volume = ((long) max.getX() - min.getX() + 1) * ((long) max.getY() - min.getY() + 1) * ((long) max.getZ() - min.getZ() + 1);
+        if (length != volume) {
+            throw new IllegalArgumentException("Expected " + volume + " block indices, got " + length);
+        }
+    }
+
     @Nullable
     public CompoundTag getBlockEntityNbt(BlockPos localPos) {
-        var nbt = this.blockEntities.get(localPos.asLong());
+        var nbt = this.getBlockEntityNbtView(localPos);
         return nbt != null ? nbt.copy() : null;
     }
 
+    /**
+     * Returns the block entity NBT at the given position without copying it, for callers that only read it.
+     * The returned tag is shared with this template and must not be modified.
+     *
+     * @param localPos the position of the block entity within this template
+     * @return the block entity NBT, or {@code null} if there is no block entity at the given position
+     */
+    @Nullable
+    public CompoundTag getBlockEntityNbtView(BlockPos localPos) {
+        var chunk = this.chunks.get(chunkPos(localPos));
+        return chunk != null ? chunk.getBlockEntityNbt(localPos.getX() & 15, localPos.getY() & 15, localPos.getZ() & 15) : null;
+    }
+
     @Nullable
     public CompoundTag getBlockEntityNbt(BlockPos localPos, BlockPos worldPos) {
         var nbt = this.getBlockEntityNbt(localPos);
@@ -154,11 +482,13 @@ public final class MapTemplate {
      * @param pos The entity position relatives to the map.
      */
     public void addEntity(Entity entity, Vec3 pos) {
-        this.getOrCreateChunk(chunkPos(pos)).addEntity(entity, pos);
+        this.checkMutable();
+        this.obtainChunk(chunkPos(pos)).addEntity(entity, pos);
     }
 
     public void addEntity(MapEntity entity) {
-        this.getOrCreateChunk(chunkPos(entity.position())).addEntity(entity);
+        this.checkMutable();
+        this.obtainChunk(chunkPos(entity.position())).addEntity(entity);
     }
 
     /**
@@ -174,21 +504,49 @@ public final class MapTemplate {
         return chunk != null ? chunk.getEntities().stream() : Stream.empty();
     }
 
-    // TODO: store / lookup more efficiently?
+    /**
+     * Returns the Y-coordinate of the highest block in the given column that matches the given heightmap, or 0 if
+     * there is no such block within the bounds of this template.
+     * <p>
+     * Columns are indexed lazily per heightmap type, so repeated lookups are constant time.
+     *
+     * @param x The X-coordinate of the column.
+     * @param z The Z-coordinate of the column.
+     * @param heightmap The heightmap type to test blocks against.
+     * @return The top Y-coordinate.
+     */
     public int getTopY(int x, int z, Heightmap.Types heightmap) {
+        var bounds = this.getBounds();
+
+        var heightmaps = this.heightmaps;
+        if (heightmaps == null || heightmaps.modCount != this.chunkModCount || !heightmaps.bounds().equals(bounds)) {
+            this.heightmaps = heightmaps = new TemplateHeightmaps(bounds, this.chunkModCount);
+        }
+
+        return heightmaps.getTopY(this, x, z, heightmap);
+    }
+
+    int scanTopY(int x, int z, Heightmap.Types heightmap, int minY, int maxY) {
         var predicate = heightmap.isOpaque();
 
-        var bounds = this.getBounds();
-        int minY = bounds.min().getY();
-        int maxY = bounds.max().getY();
+        int localX = x & 15;
+        int localZ = z & 15;
 
-        var mutablePos = new BlockPos.MutableBlockPos(x, 0, z);
-        for (int y = maxY; y >= minY; y--) {
-            mutablePos.setY(y);
+        for (int chunkY = maxY >> 4; chunkY >= minY >> 4; chunkY--) {
+            // Missing chunks are all air, which never matches a heightmap
+            var chunk = this.chunks.get(chunkPos(x >> 4, chunkY, z >> 4));
+            if (chunk == null || !chunk.hasBlocks()) {
+                continue;
+            }
+
+            int chunkMinY = chunkY << 4;
+            int topY = Math.min(maxY, chunkMinY + 15);
+            int bottomY = Math.max(minY, chunkMinY);
 
-            BlockState state = this.getBlockState(mutablePos);
-            if (predicate.test(state)) {
-                return y;
+            for (int y = topY; y >= bottomY; y--) {
+                if (predicate.test(chunk.get(localX, y & 15, localZ))) {
+                    return y;
+                }
             }
         }
 
@@ -206,19 +564,52 @@ public final class MapTemplate {
 
     @NotNull
     public MapChunk getOrCreateChunk(long pos) {
+        this.checkMutable();
+
+        // The returned chunk may be modified directly, so it needs to tell us to drop the heightmap index
+        var chunk = this.obtainChunk(pos);
+        chunk.owner = this;
+        return chunk;
+    }
+
+    /**
+     * Returns the chunk at the given position without copying it. Chunks of a frozen template, and chunks that a
+     * template still shares with a frozen template, are frozen and cannot be modified; use
+     * {@link MapTemplate#getOrCreateChunk(long)} to get a chunk for modification.
+     *
+     * @param pos the packed section position
+     * @return the chunk, or {@code null} if there is no chunk at the given position
+     */
+    @Nullable
+    public MapChunk getChunk(long pos) {
+        var chunk = this.chunks.get(pos);
+        if (chunk != null && !chunk.isFrozen()) {
+            chunk.owner = this;
+        }
+        return chunk;
+    }
+
+    @NotNull
+    private MapChunk obtainChunk(long pos) {
         var chunk = this.chunks.get(pos);
         if (chunk == null) {
             this.chunks.put(pos, chunk = new MapChunk(SectionPos.of(pos)));
+            return chunk;
         }
-        return chunk;
+        return this.thawChunk(pos, chunk);
     }
 
-    @Nullable
-    public MapChunk getChunk(long pos) {
-        return this.chunks.get(pos);
+    private MapChunk thawChunk(long pos, MapChunk chunk) {
+        // Chunks shared with a frozen template are only copied once they are about to be modified
+        if (chunk.isFrozen()) {
+            chunk = chunk.copy();
+            this.chunks.put(pos, chunk);
+        }
+        return chunk;
     }
 
     public void setBounds(BlockBounds bounds) {
+        this.checkMutable();
         this.bounds = bounds;
         this.generatedBounds = null;
     }
@@ -272,6 +663,120 @@ public final class MapTemplate {
         );
     }
 
+    /**
+     * Computes memory and content statistics of this template, such as the number of sections, their palette sizes
+     * and the estimated bytes of blocks, block entities, entities and regions. The distinct states of each section are
+     * cached until it changes, so only sections modified since the last call have their blocks scanned.
+     *
+     * @return the statistics of this template
+     */
+    public MapTemplateStats stats() {
+        return MapTemplateStats.compute(this);
+    }
+
+    /**
+     * Reclaims memory left behind by edits, and is best run before a template is cached or saved.
+     * <p>
+     * Chunks without blocks, block entities or entities are removed, and the remaining chunks re-pack their block
+     * containers and trim their entity lists. Chunks still shared with a frozen template are not re-packed, as that
+     * would mean copying them.
+     */
+    public void compact() {
+        this.checkMutable();
+
+        boolean removed = false;
+
+        var iterator = Long2ObjectMaps.fastIterator(this.chunks);
+        while (iterator.hasNext()) {
+            var chunk = iterator.next().getValue();
+            if (chunk.isEmpty()) {
+                iterator.remove();
+                removed = true;
+            } else if (!chunk.isFrozen()) {
+                chunk.compact();
+            }
+        }
+
+        if (this.chunks instanceof Long2ObjectOpenHashMap<MapChunk> map) {
+            map.trim();
+        }
+
+        if (removed) {
+            this.generatedBounds = null;
+        }
+    }
+
+    /**
+     * Returns an immutable snapshot of this template. Frozen templates can be shared and read from multiple threads
+     * without locking, while modifying them throws an {@link IllegalStateException}.
+     * <p>
+     * The chunks of this template are shared with the snapshot rather than copied, and this template copies them
+     * again before its next modification to each of them. Chunks previously returned by
+     * {@link MapTemplate#getOrCreateChunk(long)} or {@link MapTemplate#getChunk(long)} can no longer be modified.
+     *
+     * @return the frozen template, or this template if it is already frozen
+     */
+    public MapTemplate freeze() {
+        if (this.frozen) {
+            return this;
+        }
+
+        var result = new MapTemplate();
+
+        for (var entry : Long2ObjectMaps.fastIterable(this.chunks)) {
+            var chunk = entry.getValue();
+            chunk.freeze();
+            result.chunks.put(entry.getLongKey(), chunk);
+        }
+
+        result.biome = this.biome;
+        result.metadata = this.metadata.copy(true);
+
+        // Compute everything that is otherwise computed lazily, so that reads never modify the frozen template
+        result.bounds = this.bounds;
+        result.generatedBounds = this.getBounds();
+        result.heightmaps = new TemplateHeightmaps(result.getBounds(), result.chunkModCount);
+
+        result.frozen = true;
+
+        return result;
+    }
+
+    /**
+     * Returns a mutable template with the same contents as this template, which shares every chunk with this
+     * template until it modifies them. This is much cheaper than copying a template when only small parts of it are
+     * changed, such as for every game running on a shared map.
+     * <p>
+     * If this template is not frozen, it is {@link MapTemplate#freeze() frozen} first.
+     *
+     * @return the copy-on-write child template
+     */
+    public MapTemplate copyOnWrite() {
+        if (!this.frozen) {
+            return this.freeze().copyOnWrite();
+        }
+
+        var result = new MapTemplate();
+        result.chunks.putAll(this.chunks);
+
+        result.biome = this.biome;
+        result.metadata = this.metadata.copy(false);
+        result.bounds = this.bounds;
+        result.generatedBounds = this.generatedBounds;
+
+        return result;
+    }
+
+    public boolean isFrozen() {
+        return this.frozen;
+    }
+
+    private void checkMutable() {
+        if (this.frozen) {
+            throw new IllegalStateException("Cannot modify a frozen map template");
+        }
+    }
+
     static long chunkPos(BlockPos pos) {
         return chunkPos(pos.getX() >> 4, pos.getY() >> 4, pos.getZ() >> 4);
     }
@@ -307,38 +812,85 @@ public final class MapTemplate {
     public MapTemplate transformed(MapTransform transform) {
         var result = MapTemplate.createEmpty();
 
-        var mutablePos = new BlockPos.MutableBlockPos();
+        var transformer = new SectionTransformer(transform);
 
         for (MapChunk chunk : this.chunks.values()) {
-            var minChunkPos = chunk.getPos().origin();
+            transformer.transformBlocks(chunk, result.chunks);
+            transformer.transformBlockEntities(chunk, result.chunks);
 
-            for (int chunkZ = 0; chunkZ < 16; chunkZ++) {
-                for (int chunkY = 0; chunkY < 16; chunkY++) {
-                    for (int chunkX = 0; chunkX < 16; chunkX++) {
-                        var state = chunk.get(chunkX, chunkY, chunkZ);
-                        if (!state.isAir()) {
-                            state = transform.transformedBlock(state);
+            for (var entity : chunk.getEntities()) {
+                result.addEntity(entity.transformed(transform));
+            }
+        }
 
-                            mutablePos.setWithOffset(minChunkPos, chunkX, chunkY, chunkZ);
-                            result.setBlockState(transform.transformPoint(mutablePos), state);
-                        }
-                    }
+        this.transformDataInto(result, transform);
+
+        return result;
+    }
+
+    /**
+     * Transforms this template like {@link MapTemplate#transformed(MapTransform)}, but transforms the chunk sections
+     * in parallel on the given executor. The partial results of each worker are merged in a fixed order, so the
+     * result is the same as the sequential version.
+     * <p>
+     * This template must not be modified until this method returns.
+     *
+     * @param transform the transform to apply
+     * @param executor the executor to transform sections on, such as a {@link java.util.concurrent.ForkJoinPool}
+     * @return the transformed template
+     */
+    public MapTemplate transformed(MapTransform transform, Executor executor) {
+        var chunks = List.copyOf(this.chunks.values());
+
+        var tasks = new ArrayList<CompletableFuture<TransformedSlice>>();
+        for (int start = 0; start < chunks.size(); start += PARALLEL_BATCH_SIZE) {
+            var batch = chunks.subList(start, Math.min(start + PARALLEL_BATCH_SIZE, chunks.size()));
+            tasks.add(CompletableFuture.supplyAsync(() -> transformSlice(batch, transform), executor));
+        }
+
+        var result = MapTemplate.createEmpty();
+
+        for (var task : tasks) {
+            var slice = task.join();
+
+            for (var entry : Long2ObjectMaps.fastIterable(slice.chunks())) {
+                var existing = result.chunks.putIfAbsent(entry.getLongKey(), entry.getValue());
+                if (existing != null) {
+                    // Transforms are one-to-one, so sections written by several workers never overlap
+                    existing.mergeBlocksFrom(entry.getValue());
+                    existing.mergeBlockEntitiesFrom(entry.getValue());
                 }
             }
 
-            for (var entity : chunk.getEntities()) {
-                result.addEntity(entity.transformed(transform));
+            for (var entity : slice.entities()) {
+                result.addEntity(entity);
             }
         }
 
-        for (var blockEntity : Long2ObjectMaps.fastIterable(this.blockEntities)) {
-            mutablePos.set(blockEntity.getLongKey());
-            transform.transformPoint(mutablePos);
+        this.transformDataInto(result, transform);
+
+        return result;
+    }
+
+    private static TransformedSlice transformSlice(List<MapChunk> chunks, MapTransform transform) {
+        var transformer = new SectionTransformer(transform);
+
+        var resultChunks = new Long2ObjectOpenHashMap<MapChunk>();
+        var entities = new ArrayList<MapEntity>();
 
-            var nbt = blockEntity.getValue().copy();
-            result.setBlockEntityNbt(mutablePos, nbt);
+        for (var chunk : chunks) {
+            transformer.transformBlocks(chunk, resultChunks);
+            transformer.transformBlockEntities(chunk, resultChunks);
+
+            for (var entity : chunk.getEntities()) {
+                entities.add(entity.transformed(transform));
+            }
         }
 
+        return new TransformedSlice(resultChunks, entities);
+    }
+
+    private void transformDataInto(MapTemplate result, MapTransform transform) {
         result.biome = this.biome;
 
         result.metadata.data = this.metadata.data.copy();
@@ -350,8 +902,6 @@ public final class MapTemplate {
                     sourceRegion.getData().copy()
             ));
         }
-
-        return result;
     }
 
     /**
@@ -374,27 +924,89 @@ public final class MapTemplate {
     }
 
     public void mergeInto(MapTemplate other) {
+        other.checkMutable();
+
         for (var entry : Long2ObjectMaps.fastIterable(this.chunks)) {
             long chunkPos = entry.getLongKey();
-            var chunk = entry.getValue();
-            var otherChunk = other.getOrCreateChunk(chunkPos);
+            mergeChunkInto(entry.getValue(), other.obtainChunk(chunkPos));
 
-            for (int chunkZ = 0; chunkZ < 16; chunkZ++) {
-                for (int chunkY = 0; chunkY < 16; chunkY++) {
-                    for (int chunkX = 0; chunkX < 16; chunkX++) {
-                        var state = chunk.get(chunkX, chunkY, chunkZ);
-                        if (!state.isAir()) {
-                            otherChunk.set(chunkX, chunkY, chunkZ, state);
-                        }
-                    }
-                }
+            var otherHeightmaps = other.heightmaps;
+            if (otherHeightmaps != null) {
+                otherHeightmaps.invalidateChunk(SectionPos.x(chunkPos), SectionPos.z(chunkPos));
             }
+        }
 
-            for (var entity : chunk.getEntities()) {
-                otherChunk.addEntity(entity);
+        this.mergeDataInto(other);
+    }
+
+    /**
+     * Merges this template into the given template like {@link MapTemplate#mergeInto(MapTemplate)}, but merges the
+     * chunk sections in parallel on the given executor. Every section only ever merges into its own destination
+     * section, so the result is the same as the sequential version.
+     * <p>
+     * Neither template may be modified until this method returns.
+     *
+     * @param other the template to merge into
+     * @param executor the executor to merge sections on, such as a {@link java.util.concurrent.ForkJoinPool}
+     */
+    public void mergeInto(MapTemplate other, Executor executor) {
+        other.checkMutable();
+
+        var sources = new ArrayList<MapChunk>(this.chunks.size());
+        var targets = new ArrayList<MapChunk>(this.chunks.size());
+        var owners = new MapTemplate[this.chunks.size()];
+
+        // The destination chunk map isn't thread-safe, so create every destination section up front. Workers must not
+        // bump the modification count of the destination concurrently, so its chunks are detached from it meanwhile.
+        for (var entry : Long2ObjectMaps.fastIterable(this.chunks)) {
+            long chunkPos = entry.getLongKey();
+            var target = other.obtainChunk(chunkPos);
+            owners[targets.size()] = target.owner;
+            target.owner = null;
+
+            sources.add(entry.getValue());
+            targets.add(target);
+
+            var otherHeightmaps = other.heightmaps;
+            if (otherHeightmaps != null) {
+                otherHeightmaps.invalidateChunk(SectionPos.x(chunkPos), SectionPos.z(chunkPos));
+            }
+        }
+
+        var tasks = new ArrayList<CompletableFuture<Void>>();
+        for (int start = 0; start < sources.size(); start += PARALLEL_BATCH_SIZE) {
+            int from = start;
+            int to = Math.min(start + PARALLEL_BATCH_SIZE, sources.size());
+
+            tasks.add(CompletableFuture.runAsync(() -> {
+                for (int i = from; i < to; i++) {
+                    mergeChunkInto(sources.get(i), targets.get(i));
+                }
+            }, executor));
+        }
+
+        try {
+            CompletableFuture.allOf(tasks.toArray(CompletableFuture[]::new)).join();
+        } finally {
+            for (int i = 0; i < owners.length; i++) {
+                targets.get(i).owner = owners[i];
             }
+            other.chunkModCount++;
+        }
+
+        this.mergeDataInto(other);
+    }
+
+    private static void mergeChunkInto(MapChunk chunk, MapChunk otherChunk) {
+        otherChunk.mergeBlocksFrom(chunk);
+        otherChunk.mergeBlockEntitiesFrom(chunk);
+
+        for (var entity : chunk.getEntities()) {
+            otherChunk.addEntity(entity);
         }
+    }
 
+    private void mergeDataInto(MapTemplate other) {
         other.metadata.data.merge(this.metadata.data);
 
         for (var region : this.metadata.regions) {
@@ -403,8 +1015,8 @@ public final class MapTemplate {
 
         other.bounds = this.getBounds().union(other.getBounds());
         other.biome = this.biome;
+    }
 
-        // Merge block entities
-        blockEntities.forEach(other.blockEntities::putIfAbsent);
+    private record TransformedSlice(Long2ObjectMap<MapChunk> chunks, List<MapEntity> entities) {
     }
 }
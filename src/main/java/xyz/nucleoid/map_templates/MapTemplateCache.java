@@ -0,0 +1,237 @@
+package xyz.nucleoid.map_templates;
+
+import net.minecraft.resources.Identifier;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.packs.resources.ResourceManager;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Caches map templates loaded with {@link MapTemplateSerializer#loadFromResource(MinecraftServer, Identifier)}.
+ * <p>
+ * Entries are weighed by an estimate of the memory used by their sections, block entities and entities, and the
+ * least recently used templates are evicted once the total weight exceeds the configured budget. Concurrent loads
+ * of the same template are collapsed into a single load, and every entry is invalidated when the server reloads its
+ * data packs.
+ * <p>
+ * Templates returned by this cache are {@link MapTemplate#freeze() frozen}, so they can be shared between all callers
+ * and read from multiple threads. Use {@link MapTemplate#copyOnWrite()} to get a template that can be modified.
+ */
+public final class MapTemplateCache {
+    private final MinecraftServer server;
+    private final long maxWeight;
+
+    private final LinkedHashMap<Identifier, Entry> entries = new LinkedHashMap<>(16, 0.75F, true);
+    private final Map<Identifier, CompletableFuture<MapTemplate>> loading = new HashMap<>();
+
+    @Nullable
+    private ResourceManager resourceManager;
+    private int generation;
+    private long weight;
+
+    private long hits;
+    private long misses;
+    private long coalesced;
+    private long evictions;
+
+    /**
+     * Creates a template cache for the given server.
+     *
+     * @param server the server to load templates from
+     * @param maxWeight the memory budget of this cache, in estimated bytes
+     */
+    public MapTemplateCache(MinecraftServer server, long maxWeight) {
+        this.server = server;
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * Returns the template with the given identifier, loading it on the calling thread if it is not cached.
+     *
+     * @param identifier the identifier of the template
+     * @return the cached template
+     * @throws IOException if the template could not be loaded
+     */
+    public MapTemplate get(Identifier identifier) throws IOException {
+        try {
+            return this.getAsync(identifier, Runnable::run).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the template with the given identifier, loading it on the given executor if it is not cached. If the
+     * template is already being loaded, the pending load is returned instead of starting another one.
+     * <p>
+     * Whichever executor the load runs on, its chunks are decoded in parallel on the
+     * {@link net.minecraft.util.Util#backgroundExecutor() background executor}, so that a load running on the server
+     * thread never waits on tasks queued behind it.
+     *
+     * @param identifier the identifier of the template
+     * @param executor the executor to load the template on
+     * @return a future of the cached template
+     */
+    public CompletableFuture<MapTemplate> getAsync(Identifier identifier, Executor executor) {
+        CompletableFuture<MapTemplate> future;
+        int generation;
+
+        synchronized (this) {
+            this.checkResourceManager();
+
+            var entry = this.entries.get(identifier);
+            if (entry != null) {
+                this.hits++;
+                return CompletableFuture.completedFuture(entry.template());
+            }
+
+            future = this.loading.get(identifier);
+            if (future != null) {
+                this.coalesced++;
+                return future;
+            }
+
+            this.misses++;
+
+            future = new CompletableFuture<>();
+            this.loading.put(identifier, future);
+            generation = this.generation;
+        }
+
+        var loadFuture = future;
+        executor.execute(() -> this.load(identifier, loadFuture, generation));
+
+        return future;
+    }
+
+    private void load(Identifier identifier, CompletableFuture<MapTemplate> future, int generation) {
+        MapTemplate template;
+        try {
+            template = MapTemplateSerializer.loadFromResource(this.server, identifier).freeze();
+        } catch (Throwable t) {
+            synchronized (this) {
+                this.loading.remove(identifier, future);
+            }
+            future.completeExceptionally(t);
+            return;
+        }
+
+        long weight = estimateWeight(template);
+
+        synchronized (this) {
+            // Don't cache templates that were invalidated while loading, or loaded from resources which have since
+            // been reloaded
+            boolean current = this.loading.remove(identifier, future);
+            if (current && generation == this.generation) {
+                var previous = this.entries.put(identifier, new Entry(template, weight));
+                if (previous != null) {
+                    this.weight -= previous.weight();
+                }
+                this.weight += weight;
+
+                this.evict();
+            }
+        }
+
+        future.complete(template);
+    }
+
+    private void evict() {
+        var iterator = this.entries.values().iterator();
+        while (this.weight > this.maxWeight && iterator.hasNext()) {
+            var entry = iterator.next();
+            iterator.remove();
+
+            this.weight -= entry.weight();
+            this.evictions++;
+        }
+    }
+
+    private void checkResourceManager() {
+        var resourceManager = this.server.getResourceManager();
+        if (this.resourceManager != resourceManager) {
+            this.invalidateAll();
+            this.resourceManager = resourceManager;
+        }
+    }
+
+    /**
+     * Removes the template with the given identifier from this cache. If the template is still being loaded, it will
+     * not be cached.
+     *
+     * @param identifier the identifier of the template
+     */
+    public synchronized void invalidate(Identifier identifier) {
+        var entry = this.entries.remove(identifier);
+        if (entry != null) {
+            this.weight -= entry.weight();
+        }
+        this.loading.remove(identifier);
+    }
+
+    /**
+     * Removes every template from this cache. Templates that are still being loaded will not be cached.
+     */
+    public synchronized void invalidateAll() {
+        this.entries.clear();
+        this.loading.clear();
+        this.weight = 0;
+        this.generation++;
+    }
+
+    public synchronized long hits() {
+        return this.hits;
+    }
+
+    public synchronized long misses() {
+        return this.misses;
+    }
+
+    /**
+     * Returns the number of requests that joined a load which was already in progress. These are counted neither as
+     * hits nor as misses.
+     *
+     * @return the number of coalesced requests
+     */
+    public synchronized long coalesced() {
+        return this.coalesced;
+    }
+
+    public synchronized long evictions() {
+        return this.evictions;
+    }
+
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Returns the total estimated weight of the cached templates.
+     *
+     * @return the total weight in estimated bytes
+     */
+    public synchronized long weight() {
+        return this.weight;
+    }
+
+    static long estimateWeight(MapTemplate template) {
+        long weight = 0;
+        for (var chunk : template.chunks.values()) {
+            weight += chunk.estimateSize();
+        }
+        return weight;
+    }
+
+    private record Entry(MapTemplate template, long weight) {
+    }
+}
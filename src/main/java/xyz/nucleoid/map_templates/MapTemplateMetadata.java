@@ -4,7 +4,8 @@ import org.jetbrains.annotations.Nullable;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.List;
+import java.util.Collections;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 import net.minecraft.nbt.CompoundTag;
 
@@ -15,9 +16,59 @@ import net.minecraft.nbt.CompoundTag;
  * This includes {@link TemplateRegion} and arbitrary {@link CompoundTag} attached data
  */
 public final class MapTemplateMetadata {
-    final List<TemplateRegion> regions = new ArrayList<>();
+    final RegionList regions = new RegionList();
     CompoundTag data = new CompoundTag();
 
+    private boolean frozen;
+
+    @Nullable
+    private RegionIndex index;
+    private int indexVersion;
+
+    /**
+     * Creates a copy of this metadata with copied regions and data.
+     *
+     * @param frozen whether the copy may no longer be modified
+     * @return the copied metadata
+     */
+    MapTemplateMetadata copy(boolean frozen) {
+        var metadata = new MapTemplateMetadata();
+        for (var region : this.regions) {
+            var regionCopy = region.copy();
+            if (frozen) {
+                regionCopy.freeze();
+            }
+            metadata.regions.add(regionCopy);
+        }
+        metadata.data = this.data.copy();
+        metadata.frozen = frozen;
+
+        if (frozen) {
+            // Build the index up front, so that queries on the frozen metadata never modify it
+            metadata.index = new RegionIndex(metadata.regions);
+            metadata.indexVersion = metadata.regions.version();
+        }
+
+        return metadata;
+    }
+
+    private RegionIndex index() {
+        // Regions may also be changed through the deserializer or the region collection, so check the list version
+        var index = this.index;
+        int version = this.regions.version();
+        if (index == null || this.indexVersion != version) {
+            this.index = index = new RegionIndex(this.regions);
+            this.indexVersion = version;
+        }
+        return index;
+    }
+
+    private void checkMutable() {
+        if (this.frozen) {
+            throw new IllegalStateException("Cannot modify the metadata of a frozen map template");
+        }
+    }
+
     /**
      * Adds a region with the given marker tag and bounds.
      * Note that markers are not unique: multiple regions can be assigned the same marker!
@@ -40,13 +91,18 @@ public final class MapTemplateMetadata {
      * @return the added region
      */
     public TemplateRegion addRegion(String marker, BlockBounds bounds, CompoundTag nbt) {
+        this.checkMutable();
+
         TemplateRegion region = new TemplateRegion(marker, bounds, nbt);
         this.regions.add(region);
+        this.index = null;
         return region;
     }
 
     public void addRegion(TemplateRegion region) {
+        this.checkMutable();
         this.regions.add(region);
+        this.index = null;
     }
 
     /**
@@ -56,8 +112,33 @@ public final class MapTemplateMetadata {
      * @return a stream of regions that match the query
      */
     public Stream<TemplateRegion> getRegions(String marker) {
-        return this.regions.stream()
-                .filter(region -> region.getMarker().equals(marker));
+        return this.index().getRegions(marker).stream();
+    }
+
+    /**
+     * Calls the given consumer for every region that contains the given position, without allocating.
+     * Regions are visited in no particular order.
+     *
+     * @param x the X-coordinate of the position
+     * @param y the Y-coordinate of the position
+     * @param z the Z-coordinate of the position
+     * @param marker the marker to filter regions by, or {@code null} to visit regions with any marker
+     * @param consumer the consumer to call for every matching region
+     */
+    public void forEachRegionContaining(int x, int y, int z, @Nullable String marker, Consumer<TemplateRegion> consumer) {
+        this.index().forEachContaining(x, y, z, marker, consumer);
+    }
+
+    /**
+     * Calls the given consumer for every region that intersects the given bounds, without allocating.
+     * Regions are visited in no particular order.
+     *
+     * @param bounds the bounds to test regions against
+     * @param marker the marker to filter regions by, or {@code null} to visit regions with any marker
+     * @param consumer the consumer to call for every matching region
+     */
+    public void forEachRegionIntersecting(BlockBounds bounds, @Nullable String marker, Consumer<TemplateRegion> consumer) {
+        this.index().forEachIntersecting(bounds, marker, consumer);
     }
 
     /**
@@ -80,7 +161,8 @@ public final class MapTemplateMetadata {
      */
     @Nullable
     public TemplateRegion getFirstRegion(String marker) {
-        return this.getRegions(marker).findFirst().orElse(null);
+        var regions = this.index().getRegions(marker);
+        return !regions.isEmpty() ? regions.getFirst() : null;
     }
 
     /**
@@ -96,7 +178,7 @@ public final class MapTemplateMetadata {
     }
 
     public Collection<TemplateRegion> getRegions() {
-        return this.regions;
+        return this.frozen ? Collections.unmodifiableList(this.regions) : this.regions;
     }
 
     /**
@@ -105,15 +187,35 @@ public final class MapTemplateMetadata {
      * @param data the data as an NBT compound
      */
     public void setData(CompoundTag data) {
+        this.checkMutable();
         this.data = data;
     }
 
     /**
-     * Gets the arbitrary data of the map.
+     * Gets the arbitrary data of the map. The data of frozen metadata is shared between every reader without being
+     * copied, so it must not be modified.
      *
      * @return the data as an NBT compound
      */
     public CompoundTag getData() {
         return this.data;
     }
+
+    /**
+     * A region list that counts every change made to it, including replacements, which don't count as structural
+     * modifications for {@link ArrayList#modCount}.
+     */
+    static final class RegionList extends ArrayList<TemplateRegion> {
+        private int replacements;
+
+        @Override
+        public TemplateRegion set(int index, TemplateRegion element) {
+            this.replacements++;
+            return super.set(index, element);
+        }
+
+        int version() {
+            return this.modCount + this.replacements;
+        }
+    }
 }
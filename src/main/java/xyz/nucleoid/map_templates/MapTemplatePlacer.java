@@ -1,11 +1,15 @@
 package xyz.nucleoid.map_templates;
 
 import com.mojang.logging.LogUtils;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMaps;
 import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 import net.minecraft.core.BlockPos;
 import net.minecraft.core.RegistryAccess;
 import net.minecraft.core.SectionPos;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.network.protocol.game.ClientboundLevelChunkWithLightPacket;
 import net.minecraft.server.level.ServerLevel;
 import net.minecraft.util.ProblemReporter;
 import net.minecraft.world.level.ChunkPos;
@@ -14,14 +18,280 @@ import net.minecraft.world.level.chunk.LevelChunk;
 import net.minecraft.world.level.storage.TagValueInput;
 import org.slf4j.Logger;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
 public record MapTemplatePlacer(MapTemplate template) {
     private static final Logger LOGGER = LogUtils.getLogger();
 
+    private static final int PREPARE_BATCH_SIZE = 32;
+
     public void placeAt(ServerLevel world, BlockPos origin) {
-        var chunkCache = this.collectChunks(world, origin, this.template.bounds);
+        this.placeAt(world, origin, Set.of());
+    }
+
+    /**
+     * Places the template into the world with the given origin.
+     *
+     * @param world the world to place the template in
+     * @param origin the world position that the template origin is placed at
+     * @param flags flags that control how blocks are written into the world
+     */
+    public void placeAt(ServerLevel world, BlockPos origin, Set<Flag> flags) {
+        Collection<LevelChunk> chunks;
+        if (usesWriter(flags)) {
+            var writer = PlacementWriter.create(world, flags);
+            this.placeSections(writer, origin);
+            writer.flush();
+
+            chunks = writer.chunks();
+        } else {
+            var chunkCache = this.collectChunks(world, origin, this.template.bounds);
+            this.placeBlocks(world.registryAccess(), origin, chunkCache);
+
+            chunks = chunkCache.values();
+        }
 
-        this.placeBlocks(world.registryAccess(), origin, chunkCache);
         this.placeEntities(world, origin);
+
+        if (flags.contains(Flag.RESYNC_CHUNKS)) {
+            resyncChunks(world, chunks);
+        }
+    }
+
+    private static boolean usesWriter(Set<Flag> flags) {
+        return flags.contains(Flag.COPY_SECTIONS) || flags.contains(Flag.NO_NEIGHBOR_UPDATES)
+                || flags.contains(Flag.DEFER_LIGHTING) || flags.contains(Flag.DEFER_HEIGHTMAPS);
+    }
+
+    /**
+     * Sends every player watching one of the given chunks a single full chunk packet for it, including light data.
+     */
+    static void resyncChunks(ServerLevel world, Collection<LevelChunk> chunks) {
+        var chunkSource = world.getChunkSource();
+        var lightEngine = chunkSource.getLightEngine();
+
+        for (var chunk : chunks) {
+            var players = chunkSource.chunkMap.getPlayers(chunk.getPos(), false);
+            if (players.isEmpty()) {
+                continue;
+            }
+
+            var packet = new ClientboundLevelChunkWithLightPacket(chunk, lightEngine, null, null);
+            for (var player : players) {
+                player.connection.send(packet);
+            }
+        }
+    }
+
+    /**
+     * Starts placing the template into the world over multiple ticks, beginning with the sections closest to the
+     * given priority point. {@link IncrementalPlacement#tick()} must be called on the server thread until the
+     * placement is complete.
+     *
+     * @param world the world to place the template in
+     * @param origin the world position that the template origin is placed at
+     * @param priority the world position to place the closest sections to first
+     * @param budget how much to place per tick
+     * @return the incremental placement
+     */
+    public IncrementalPlacement placeIncrementally(ServerLevel world, BlockPos origin, BlockPos priority, IncrementalPlacement.Budget budget) {
+        return new IncrementalPlacement(this, world, origin, priority, budget);
+    }
+
+    /**
+     * Compiles the template into a plan that can be placed many times at different origins, such as for stamping
+     * several identical arenas. The plan holds its own copy of all data, so the template may be modified afterwards.
+     *
+     * @return the compiled placement
+     */
+    public CompiledPlacement compile() {
+        var template = this.template;
+        var bounds = template.getBounds();
+
+        var sections = new ArrayList<CompiledPlacement.Section>();
+        var blockEntities = new ArrayList<CompiledPlacement.BlockEntityPrototype>();
+        var entities = new ArrayList<MapEntity>();
+
+        var indices = new short[16 * 16 * 16];
+        var states = new BlockState[16 * 16 * 16];
+
+        for (var chunk : template.chunks.values()) {
+            var pos = chunk.getPos();
+            if (chunk.isEmpty() || !SectionClip.intersects(bounds, pos)) {
+                continue;
+            }
+
+            var chunkOrigin = pos.origin();
+
+            if (chunk.hasBlocks()) {
+                int count = 0;
+                for (int index = 0; index < indices.length; index++) {
+                    int x = index & 15;
+                    int y = index >> 8;
+                    int z = index >> 4 & 15;
+
+                    var state = chunk.get(x, y, z);
+                    if (!state.isAir() && bounds.contains(x + chunkOrigin.getX(), y + chunkOrigin.getY(), z + chunkOrigin.getZ())) {
+                        indices[count] = (short) index;
+                        states[count] = state;
+                        count++;
+                    }
+                }
+
+                if (count > 0) {
+                    sections.add(new CompiledPlacement.Section(pos.getX(), pos.getY(), pos.getZ(), Arrays.copyOf(indices, count), Arrays.copyOf(states, count)));
+                }
+            }
+
+            for (var entry : Int2ObjectMaps.fastIterable(chunk.getBlockEntities())) {
+                int index = entry.getIntKey();
+                var templatePos = chunkOrigin.offset(index & 15, index >> 8, index >> 4 & 15);
+                if (bounds.contains(templatePos) && template.getBlockState(templatePos).hasBlockEntity()) {
+                    blockEntities.add(new CompiledPlacement.BlockEntityPrototype(templatePos, entry.getValue().copy()));
+                }
+            }
+
+            for (var entity : chunk.getEntities()) {
+                entities.add(new MapEntity(entity.position(), entity.nbt().copy()));
+            }
+        }
+
+        return new CompiledPlacement(List.copyOf(sections), List.copyOf(blockEntities), List.copyOf(entities));
+    }
+
+    /**
+     * Prepares a placement of the template at the given origin in parallel on the given executor.
+     * <p>
+     * All block data is re-offset into world sections, and block entity and entity NBT is built ahead of time, so
+     * that only the world mutation in {@link PreparedPlacement#apply(ServerLevel)} has to run on the server thread.
+     * The template must not be modified until the returned future completes.
+     *
+     * @param origin the world position that the template origin will be placed at
+     * @param executor the executor to prepare the placement on, such as a {@link java.util.concurrent.ForkJoinPool}
+     * @return a future of the prepared placement
+     */
+    public CompletableFuture<PreparedPlacement> prepare(BlockPos origin, Executor executor) {
+        var template = this.template;
+        var bounds = template.getBounds();
+        var chunks = List.copyOf(template.chunks.values());
+
+        var slices = new ArrayList<CompletableFuture<PreparedSlice>>();
+        for (int start = 0; start < chunks.size(); start += PREPARE_BATCH_SIZE) {
+            var batch = chunks.subList(start, Math.min(start + PREPARE_BATCH_SIZE, chunks.size()));
+            slices.add(CompletableFuture.supplyAsync(() -> prepareSlice(batch, bounds, origin), executor));
+        }
+
+        return CompletableFuture.allOf(slices.toArray(CompletableFuture[]::new)).thenApply(unused -> {
+            var sections = new Long2ObjectOpenHashMap<BlockState[]>();
+            var blockEntities = new Long2ObjectOpenHashMap<CompoundTag>();
+            var entities = new ArrayList<CompoundTag>();
+
+            // Merge in slice order so that the result does not depend on scheduling
+            for (var future : slices) {
+                var slice = future.join();
+
+                for (var entry : Long2ObjectMaps.fastIterable(slice.sections())) {
+                    var existing = sections.putIfAbsent(entry.getLongKey(), entry.getValue());
+                    if (existing != null) {
+                        var states = entry.getValue();
+                        for (int i = 0; i < states.length; i++) {
+                            if (states[i] != null) {
+                                existing[i] = states[i];
+                            }
+                        }
+                    }
+                }
+
+                blockEntities.putAll(slice.blockEntities());
+                entities.addAll(slice.entities());
+            }
+
+            return new PreparedPlacement(sections, blockEntities, entities);
+        });
+    }
+
+    private static PreparedSlice prepareSlice(List<MapChunk> chunks, BlockBounds bounds, BlockPos origin) {
+        var sections = new Long2ObjectOpenHashMap<BlockState[]>();
+        var blockEntities = new Long2ObjectOpenHashMap<CompoundTag>();
+        var entities = new ArrayList<CompoundTag>();
+
+        int originX = origin.getX();
+        int originY = origin.getY();
+        int originZ = origin.getZ();
+
+        long lastSectionPos = Long.MAX_VALUE;
+        BlockState[] lastSection = null;
+
+        for (var chunk : chunks) {
+            if (chunk.isEmpty()) {
+                continue;
+            }
+
+            var chunkOrigin = chunk.getPos().origin();
+
+            var clip = SectionClip.of(bounds, chunk.getPos());
+            if (clip.isEmpty()) {
+                continue;
+            }
+
+            int offsetX = chunkOrigin.getX() + originX;
+            int offsetY = chunkOrigin.getY() + originY;
+            int offsetZ = chunkOrigin.getZ() + originZ;
+
+            if (chunk.hasBlocks()) {
+                for (int y = clip.minY(); y <= clip.maxY(); y++) {
+                    for (int z = clip.minZ(); z <= clip.maxZ(); z++) {
+                        for (int x = clip.minX(); x <= clip.maxX(); x++) {
+                            var state = chunk.get(x, y, z);
+                            if (state.isAir()) {
+                                continue;
+                            }
+
+                            int worldX = x + offsetX;
+                            int worldY = y + offsetY;
+                            int worldZ = z + offsetZ;
+
+                            long sectionPos = SectionPos.asLong(worldX >> 4, worldY >> 4, worldZ >> 4);
+                            if (sectionPos != lastSectionPos) {
+                                lastSection = sections.computeIfAbsent(sectionPos, p -> new BlockState[16 * 16 * 16]);
+                                lastSectionPos = sectionPos;
+                            }
+
+                            lastSection[PreparedPlacement.index(worldX, worldY, worldZ)] = state;
+                        }
+                    }
+                }
+            }
+
+            for (var entry : Int2ObjectMaps.fastIterable(chunk.getBlockEntities())) {
+                int index = entry.getIntKey();
+                int x = index & 15;
+                int y = index >> 8;
+                int z = index >> 4 & 15;
+                if (!bounds.contains(x + chunkOrigin.getX(), y + chunkOrigin.getY(), z + chunkOrigin.getZ()) || !chunk.get(x, y, z).hasBlockEntity()) {
+                    continue;
+                }
+
+                // The placement is applied later, so it needs its own copy in case the template is modified
+                var nbt = entry.getValue().copy();
+                nbt.putInt("x", x + offsetX);
+                nbt.putInt("y", y + offsetY);
+                nbt.putInt("z", z + offsetZ);
+                blockEntities.put(BlockPos.asLong(x + offsetX, y + offsetY, z + offsetZ), nbt);
+            }
+
+            for (var entity : chunk.getEntities()) {
+                entities.add(entity.createEntityNbt(origin));
+            }
+        }
+
+        return new PreparedSlice(sections, blockEntities, entities);
     }
 
     private Long2ObjectMap<LevelChunk> collectChunks(ServerLevel world, BlockPos origin, BlockBounds bounds) {
@@ -47,31 +317,43 @@ public record MapTemplatePlacer(MapTemplate template) {
 
             var worldPos = new BlockPos.MutableBlockPos();
 
-            int originX = origin.getX();
-            int originY = origin.getY();
-            int originZ = origin.getZ();
-
-            for (var templatePos : bounds) {
-                worldPos.setWithOffset(templatePos, originX, originY, originZ);
-
-                BlockState state = template.getBlockState(templatePos);
-                if (state.isAir()) {
+            // Only visit template sections that have blocks, rather than every position in the bounds
+            for (var templateChunk : template.chunks.values()) {
+                if (!templateChunk.hasBlocks()) {
                     continue;
                 }
 
-                int chunkX = worldPos.getX() >> 4;
-                int chunkZ = worldPos.getZ() >> 4;
+                var chunkOrigin = templateChunk.getPos().origin();
+
+                var clip = SectionClip.of(bounds, templateChunk.getPos());
 
-                long chunkPos = ChunkPos.pack(chunkX, chunkZ);
-                var chunk = chunkCache.get(chunkPos);
+                int offsetX = chunkOrigin.getX() + origin.getX();
+                int offsetY = chunkOrigin.getY() + origin.getY();
+                int offsetZ = chunkOrigin.getZ() + origin.getZ();
 
-                chunk.setBlockState(worldPos, state);
-                if (state.hasBlockEntity()) {
-                    var nbt = template.getBlockEntityNbt(templatePos, worldPos);
-                    if (nbt != null) {
-                        var blockEntity = chunk.getBlockEntity(worldPos);
-                        if (blockEntity != null) {
-                            blockEntity.loadWithComponents(TagValueInput.create(reporter.forChild(blockEntity.problemPath()), access, nbt));
+                for (int y = clip.minY(); y <= clip.maxY(); y++) {
+                    for (int z = clip.minZ(); z <= clip.maxZ(); z++) {
+                        for (int x = clip.minX(); x <= clip.maxX(); x++) {
+                            BlockState state = templateChunk.get(x, y, z);
+                            if (state.isAir()) {
+                                continue;
+                            }
+
+                            worldPos.set(x + offsetX, y + offsetY, z + offsetZ);
+
+                            long chunkPos = ChunkPos.pack(worldPos.getX() >> 4, worldPos.getZ() >> 4);
+                            var chunk = chunkCache.get(chunkPos);
+
+                            chunk.setBlockState(worldPos, state);
+                            if (state.hasBlockEntity()) {
+                                var nbt = templateChunk.getBlockEntityNbt(x, y, z);
+                                if (nbt != null) {
+                                    var blockEntity = chunk.getBlockEntity(worldPos);
+                                    if (blockEntity != null) {
+                                        blockEntity.loadWithComponents(TagValueInput.create(reporter.forChild(blockEntity.problemPath()), access, nbt));
+                                    }
+                                }
+                            }
                         }
                     }
                 }
@@ -79,22 +361,126 @@ public record MapTemplatePlacer(MapTemplate template) {
         }
     }
 
-    private void placeEntities(ServerLevel world, BlockPos origin) {
+    private void placeSections(PlacementWriter writer, BlockPos origin) {
         var template = this.template;
+        var bounds = template.getBounds();
 
-        var chunks = template.getBounds().asChunkSections();
-        var chunkIterator = chunks.iterator();
+        for (var chunk : template.chunks.values()) {
+            placeSection(writer, chunk, bounds, origin);
+            placeBlockEntities(writer, chunk, bounds, origin);
+        }
+    }
 
-        while (chunkIterator.hasNext()) {
-            long chunkPos = chunkIterator.nextLong();
-            int chunkX = SectionPos.x(chunkPos);
-            int chunkY = SectionPos.y(chunkPos);
-            int chunkZ = SectionPos.z(chunkPos);
-
-            var entities = template.getEntitiesInChunk(chunkX, chunkY, chunkZ);
-            entities.forEach(mapEntity ->
-                    mapEntity.createEntities(world, origin, world::addFreshEntity)
-            );
+    /**
+     * Writes the part of the given template section that lies within the bounds into the world.
+     *
+     * @return the number of blocks written
+     */
+    static int placeSection(PlacementWriter writer, MapChunk chunk, BlockBounds bounds, BlockPos origin) {
+        if (!chunk.hasBlocks()) {
+            return 0;
         }
+
+        var chunkOrigin = chunk.getPos().origin();
+
+        var clip = SectionClip.of(bounds, chunk.getPos());
+
+        int offsetX = chunkOrigin.getX() + origin.getX();
+        int offsetY = chunkOrigin.getY() + origin.getY();
+        int offsetZ = chunkOrigin.getZ() + origin.getZ();
+
+        int count = 0;
+
+        // When the origin is section-aligned, this all lands in a single world section
+        for (int y = clip.minY(); y <= clip.maxY(); y++) {
+            for (int z = clip.minZ(); z <= clip.maxZ(); z++) {
+                for (int x = clip.minX(); x <= clip.maxX(); x++) {
+                    var state = chunk.get(x, y, z);
+                    if (!state.isAir()) {
+                        writer.setBlock(x + offsetX, y + offsetY, z + offsetZ, state);
+                        count++;
+                    }
+                }
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Queues the block entities of the given template section that lie within the bounds to be loaded into the
+     * world.
+     */
+    static void placeBlockEntities(PlacementWriter writer, MapChunk chunk, BlockBounds bounds, BlockPos origin) {
+        if (!chunk.hasBlockEntities()) {
+            return;
+        }
+
+        var chunkOrigin = chunk.getPos().origin();
+
+        for (var entry : Int2ObjectMaps.fastIterable(chunk.getBlockEntities())) {
+            int index = entry.getIntKey();
+            int x = index & 15;
+            int y = index >> 8;
+            int z = index >> 4 & 15;
+            if (!bounds.contains(x + chunkOrigin.getX(), y + chunkOrigin.getY(), z + chunkOrigin.getZ()) || !chunk.get(x, y, z).hasBlockEntity()) {
+                continue;
+            }
+
+            var worldPos = new BlockPos(x + chunkOrigin.getX() + origin.getX(), y + chunkOrigin.getY() + origin.getY(), z + chunkOrigin.getZ() + origin.getZ());
+            writer.setBlockEntityNbt(worldPos, entry.getValue());
+        }
+    }
+
+    void placeEntities(ServerLevel world, BlockPos origin) {
+        var template = this.template;
+        var bounds = template.getBounds();
+
+        for (var chunk : template.chunks.values()) {
+            if (!chunk.hasEntities() || !SectionClip.intersects(bounds, chunk.getPos())) {
+                continue;
+            }
+
+            for (var mapEntity : chunk.getEntities()) {
+                mapEntity.createEntities(world, origin, world::addFreshEntity);
+            }
+        }
+    }
+
+    private record PreparedSlice(Long2ObjectMap<BlockState[]> sections, Long2ObjectMap<CompoundTag> blockEntities, List<CompoundTag> entities) {
+    }
+
+    /**
+     * Controls how blocks are written into the world. When any flag other than {@link #RESYNC_CHUNKS} is given,
+     * blocks are written straight into the sections of world chunks rather than through
+     * {@link LevelChunk#setBlockState}, and block entities are created once all blocks are written.
+     */
+    public enum Flag {
+        /**
+         * Copies template sections straight into the sections of world chunks. Block counts, heightmaps, lighting and
+         * block entities are fixed up once per touched section or chunk after all blocks are written. This implies
+         * {@link #NO_NEIGHBOR_UPDATES}, {@link #DEFER_LIGHTING} and {@link #DEFER_HEIGHTMAPS}.
+         */
+        COPY_SECTIONS,
+        /**
+         * Skips the {@code onPlace} callbacks of placed blocks, which would otherwise run once all blocks are
+         * written.
+         */
+        NO_NEIGHBOR_UPDATES,
+        /**
+         * Defers light updates until all blocks are written, then rebuilds the sky light sources once per affected
+         * chunk and queues one light check per position with changed light properties.
+         */
+        DEFER_LIGHTING,
+        /**
+         * Defers heightmap updates until all blocks are written, then rebuilds the heightmaps once per affected
+         * chunk.
+         */
+        DEFER_HEIGHTMAPS,
+        /**
+         * Once placement finishes, sends each player watching an affected chunk one full chunk packet with light
+         * data per chunk, instead of relying on per-block change tracking.
+         */
+        RESYNC_CHUNKS
     }
 }
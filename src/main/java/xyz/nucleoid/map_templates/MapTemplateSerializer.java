@@ -1,6 +1,7 @@
 package xyz.nucleoid.map_templates;
 
 import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
 import com.mojang.datafixers.DataFixer;
 import com.mojang.datafixers.DSL.TypeReference;
 import com.mojang.serialization.Dynamic;
@@ -21,23 +22,86 @@ import net.minecraft.nbt.Tag;
 import net.minecraft.resources.ResourceKey;
 import net.minecraft.resources.Identifier;
 import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.packs.resources.ResourceManager;
+import net.minecraft.util.Mth;
+import net.minecraft.util.Util;
 import net.minecraft.util.datafix.DataFixers;
-import net.minecraft.util.datafix.fixes.References;
+import net.minecraft.world.phys.Vec3;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 public final class MapTemplateSerializer {
     private static final Logger LOGGER = LogManager.getLogger(MapTemplateSerializer.class);
     private static final boolean SKIP_FIXERS = FabricLoader.getInstance().isModLoaded("databreaker");
 
+    private static final int LOAD_BATCH_SIZE = 64;
+
+    @Nullable
+    private static volatile Path upgradeCacheDirectory;
+
+    // Cached upgrades are stored in the compact format, so they get their own extension rather than .nbt
+    private static final String UPGRADE_CACHE_EXTENSION = ".compact";
+
+    // Resources can't change until the resource manager is replaced by a reload, so the cache path of a resource only
+    // needs to be found by reading and hashing it once per resource manager. Resources that were already up to date
+    // map to an empty path, so they are loaded directly from then on.
+    private static final Map<ResourceManager, Map<Identifier, Optional<Path>>> UPGRADE_CACHE_PATHS = Collections.synchronizedMap(new WeakHashMap<>());
+
     private MapTemplateSerializer() {
     }
 
+    /**
+     * Enables or disables the persistent cache of upgraded templates.
+     * <p>
+     * When enabled, templates loaded through {@link MapTemplateSerializer#loadFromResource(MinecraftServer, Identifier)}
+     * that were saved by an older game version are stored in the given directory after being datafixed. Later loads
+     * of the same unchanged resource on the same game version read the upgraded copy and skip the datafixer.
+     * Resources that are already up to date are remembered as such and loaded directly without being hashed again.
+     *
+     * @param directory the directory to store upgraded templates in, or {@code null} to disable the cache
+     */
+    public static void setUpgradeCacheDirectory(@Nullable Path directory) {
+        upgradeCacheDirectory = directory;
+    }
+
     public static MapTemplate loadFromResource(MinecraftServer server, Identifier identifier) throws IOException {
+        return loadFromResource(server, identifier, Util.backgroundExecutor());
+    }
+
+    /**
+     * Loads a map template from the resources of the given server, decoding and datafixing its chunks and block
+     * entities in parallel on the given executor.
+     *
+     * @param server the server to load the template from
+     * @param identifier the identifier of the template
+     * @param executor the executor to decode chunks on, such as a {@link java.util.concurrent.ForkJoinPool}
+     * @return the loaded template
+     */
+    public static MapTemplate loadFromResource(MinecraftServer server, Identifier identifier, Executor executor) throws IOException {
         var path = getResourcePathFor(identifier);
 
         var resourceManager = server.getResourceManager();
@@ -47,18 +111,184 @@ public final class MapTemplateSerializer {
             throw new IOException("No resource found for " + identifier);
         }
 
-        return loadFrom(resource.get().open(), server.registryAccess());
+        var cacheDirectory = upgradeCacheDirectory;
+        if (cacheDirectory == null) {
+            return loadFrom(resource.get().open(), server.registryAccess(), null, executor);
+        }
+
+        var registryLookup = server.registryAccess();
+        var cachePaths = UPGRADE_CACHE_PATHS.computeIfAbsent(resourceManager, manager -> new ConcurrentHashMap<>());
+
+        var knownEntry = cachePaths.get(identifier);
+        if (knownEntry != null && knownEntry.isEmpty()) {
+            return loadFrom(resource.get().open(), registryLookup, null, executor);
+        }
+
+        var knownCachePath = knownEntry != null ? knownEntry.get() : null;
+        if (knownCachePath != null && cacheDirectory.equals(knownCachePath.getParent())) {
+            var template = loadUpgraded(knownCachePath, registryLookup, identifier);
+            if (template != null) {
+                return template;
+            }
+        }
+
+        byte[] bytes;
+        try (var input = resource.get().open()) {
+            bytes = input.readAllBytes();
+        }
+
+        int dataVersion = getCurrentDataVersion();
+        var cachePath = cacheDirectory.resolve(Hashing.murmur3_128().hashBytes(bytes) + "-" + dataVersion + UPGRADE_CACHE_EXTENSION);
+
+        if (!cachePath.equals(knownCachePath)) {
+            var template = loadUpgraded(cachePath, registryLookup, identifier);
+            if (template != null) {
+                cachePaths.put(identifier, Optional.of(cachePath));
+                return template;
+            }
+        }
+
+        var template = MapTemplate.createEmpty();
+        int sourceVersion = load(template, new ByteArrayInputStream(bytes), registryLookup, null, executor);
+
+        if (sourceVersion < dataVersion && !SKIP_FIXERS) {
+            saveUpgraded(template, cachePath, registryLookup, identifier);
+            cachePaths.put(identifier, Optional.of(cachePath));
+        } else {
+            cachePaths.put(identifier, Optional.empty());
+        }
+
+        return template;
+    }
+
+    /**
+     * Loads an upgraded template from the cache. Cache files that can't be read are deleted, so they are written
+     * again from the source.
+     *
+     * @return the upgraded template, or {@code null} if it is not cached or could not be read
+     */
+    @Nullable
+    private static MapTemplate loadUpgraded(Path path, HolderLookup.Provider registryLookup, Identifier identifier) {
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+
+        try (var input = Files.newInputStream(path)) {
+            return loadFrom(input, registryLookup);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Failed to load upgraded template {} from cache, loading it from source", identifier, e);
+
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException ignored) {
+            }
+
+            return null;
+        }
+    }
+
+    private static void saveUpgraded(MapTemplate template, Path path, HolderLookup.Provider registryLookup, Identifier identifier) {
+        Path tempPath = null;
+        try {
+            Files.createDirectories(path.getParent());
+
+            // Write to a temporary file first, so that other servers sharing the cache never see a partial template
+            tempPath = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+            try (var output = Files.newOutputStream(tempPath)) {
+                saveTo(template, output, registryLookup, Format.COMPACT);
+            }
+
+            Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to cache upgraded template {}", identifier, e);
+
+            if (tempPath != null) {
+                try {
+                    Files.deleteIfExists(tempPath);
+                } catch (IOException ignored) {
+                }
+            }
+        }
     }
 
     public static MapTemplate loadFrom(InputStream input, HolderLookup.Provider registryLookup) throws IOException {
+        return loadFrom(input, registryLookup, null);
+    }
+
+    /**
+     * Loads only the part of a map template that intersects the given bounds.
+     * <p>
+     * Chunks, block entities and entities outside the filter are skipped before they are datafixed or decoded. The
+     * bounds of the loaded template are clipped to the filter, or shrink to a single block at the minimum of the
+     * filter if the template doesn't intersect it, while all regions and attached data are kept. Chunks
+     * and block entities are decoded in parallel on the {@link Util#backgroundExecutor() background executor}.
+     *
+     * @param input the stream to read the template from
+     * @param registryLookup the registries to decode the template with
+     * @param filter the bounds to load, or {@code null} to load everything
+     * @return the loaded template
+     */
+    public static MapTemplate loadFrom(InputStream input, HolderLookup.Provider registryLookup, @Nullable BlockBounds filter) throws IOException {
+        return loadFrom(input, registryLookup, filter, Util.backgroundExecutor());
+    }
+
+    /**
+     * Loads a map template, decoding and datafixing its chunks and block entities in parallel on the given executor.
+     *
+     * @param input the stream to read the template from
+     * @param registryLookup the registries to decode the template with
+     * @param filter the bounds to load, or {@code null} to load everything
+     * @param executor the executor to decode chunks on, such as a {@link java.util.concurrent.ForkJoinPool}
+     * @return the loaded template
+     */
+    public static MapTemplate loadFrom(InputStream input, HolderLookup.Provider registryLookup, @Nullable BlockBounds filter, Executor executor) throws IOException {
         var template = MapTemplate.createEmpty();
-        load(template, NbtIo.readCompressed(input, NbtAccounter.unlimitedHeap()), registryLookup);
+        load(template, input, registryLookup, filter, executor);
         return template;
     }
 
+    /**
+     * Loads a map template from the given stream into the given empty template.
+     *
+     * @return the data version that the template was saved with
+     */
+    private static int load(MapTemplate template, InputStream input, HolderLookup.Provider registryLookup, @Nullable BlockBounds filter, Executor executor) throws IOException {
+        try (var stream = new DataInputStream(new BufferedInputStream(new GZIPInputStream(input)))) {
+            // Both formats are gzip'd, so detect the format from the header of the decompressed data
+            stream.mark(Integer.BYTES);
+            int magic = stream.readInt();
+            stream.reset();
+
+            if (magic == CompactTemplateFormat.MAGIC) {
+                return CompactTemplateFormat.read(template, stream, registryLookup, DataFixers.getDataFixer(), filter);
+            } else {
+                return load(template, NbtIo.read(stream, NbtAccounter.unlimitedHeap()), registryLookup, filter, executor);
+            }
+        }
+    }
+
     public static void saveTo(MapTemplate template, OutputStream output, HolderLookup.Provider registryLookup) throws IOException {
-        var root = save(template, registryLookup);
-        NbtIo.writeCompressed(root, output);
+        saveTo(template, output, registryLookup, Format.NBT);
+    }
+
+    /**
+     * Saves a map template in the given format. Templates in either format can be loaded with
+     * {@link MapTemplateSerializer#loadFrom(InputStream, HolderLookup.Provider)}.
+     *
+     * @param template the template to save
+     * @param output the stream to write the template to
+     * @param registryLookup the registries to encode the template with
+     * @param format the format to save the template in
+     */
+    public static void saveTo(MapTemplate template, OutputStream output, HolderLookup.Provider registryLookup, Format format) throws IOException {
+        switch (format) {
+            case NBT -> NbtIo.writeCompressed(save(template, registryLookup), output);
+            case COMPACT -> {
+                try (var stream = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(output)))) {
+                    CompactTemplateFormat.write(template, stream);
+                }
+            }
+        }
     }
 
     private static int getDataVersion(CompoundTag root) {
@@ -66,55 +296,71 @@ public final class MapTemplateSerializer {
         return root.getIntOr("data_version", 2586);
     }
 
-    private static int getCurrentDataVersion() {
+    static int getCurrentDataVersion() {
         return SharedConstants.getCurrentVersion().dataVersion().version();
     }
 
-    private static void load(MapTemplate template, CompoundTag root, HolderLookup.Provider registryLookup) {
-        load(template, root, registryLookup, DataFixers.getDataFixer());
+    private static int load(MapTemplate template, CompoundTag root, HolderLookup.Provider registryLookup, @Nullable BlockBounds filter, Executor executor) {
+        return load(template, root, registryLookup, DataFixers.getDataFixer(), filter, executor);
     }
 
-    private static void load(MapTemplate template, CompoundTag root, HolderLookup.Provider registryLookup, DataFixer fixer) {
+    private static int load(MapTemplate template, CompoundTag root, HolderLookup.Provider registryLookup, DataFixer fixer, @Nullable BlockBounds filter, Executor executor) {
         int oldVersion = getDataVersion(root);
         int targetVersion = getCurrentDataVersion();
+        var fixCache = new DataFixCache(fixer, oldVersion, targetVersion);
 
         var chunkList = root.getListOrEmpty("chunks");
-        for (int i = 0; i < chunkList.size(); i++) {
-            var chunkRoot = chunkList.getCompoundOrEmpty(i);
-
-            if (targetVersion > oldVersion) {
-                // Apply data fixer to chunk palette and entities
-
-                if (oldVersion <= 2730) {
-                    var palette = chunkRoot.getListOrEmpty("palette");
-                    var blockData = chunkRoot.getLongArray("block_states").orElseGet(() -> new long[0]);
-                    chunkRoot.remove("palette");
-
-                    var blockStates = new CompoundTag();
-                    blockStates.putLongArray("data", blockData);
-                    blockStates.put("palette", palette);
-                    chunkRoot.put("block_states", blockStates);
+        var chunkTasks = new ArrayList<CompletableFuture<List<MapChunk>>>();
+        for (int start = 0; start < chunkList.size(); start += LOAD_BATCH_SIZE) {
+            int from = start;
+            int to = Math.min(start + LOAD_BATCH_SIZE, chunkList.size());
+
+            chunkTasks.add(CompletableFuture.supplyAsync(() -> {
+                var chunks = new ArrayList<MapChunk>(to - from);
+                for (int i = from; i < to; i++) {
+                    var chunk = loadChunk(chunkList.getCompoundOrEmpty(i), registryLookup, fixCache, oldVersion, targetVersion, filter);
+                    if (chunk != null) {
+                        chunks.add(chunk);
+                    }
                 }
+                return chunks;
+            }, executor));
+        }
 
-                if (!SKIP_FIXERS) {
-                    var palette = chunkRoot.getCompoundOrEmpty("block_states").getListOrEmpty("palette");
-                    updateList(palette, fixer, References.BLOCK_STATE, oldVersion, targetVersion);
-
-                    var entities = chunkRoot.getListOrEmpty("entities");
-                    updateList(entities, fixer, References.ENTITY, oldVersion, targetVersion);
-                } else {
-                    LOGGER.error("Couldn't apply datafixers to template because databreaker is present!");
+        var blockEntityList = root.getListOrEmpty("block_entities");
+        var blockEntityTasks = new ArrayList<CompletableFuture<List<CompoundTag>>>();
+        for (int start = 0; start < blockEntityList.size(); start += LOAD_BATCH_SIZE) {
+            int from = start;
+            int to = Math.min(start + LOAD_BATCH_SIZE, blockEntityList.size());
+
+            blockEntityTasks.add(CompletableFuture.supplyAsync(() -> {
+                var blockEntities = new ArrayList<CompoundTag>(to - from);
+                for (int i = from; i < to; i++) {
+                    var blockEntity = loadBlockEntity(blockEntityList.getCompoundOrEmpty(i), fixCache, filter);
+                    if (blockEntity != null) {
+                        blockEntities.add(blockEntity);
+                    }
                 }
-            }
+                return blockEntities;
+            }, executor));
+        }
 
-            chunkRoot.read("pos", Vec3i.CODEC).ifPresentOrElse(posArray -> {
-                long pos = MapTemplate.chunkPos(posArray.getX(), posArray.getY(), posArray.getZ());
-                var chunk = MapChunk.deserialize(SectionPos.of(pos), chunkRoot, registryLookup);
+        // Insert results in file order, so that the loaded template doesn't depend on scheduling
+        for (var task : chunkTasks) {
+            for (var chunk : task.join()) {
+                template.chunks.put(chunk.getPos().asLong(), chunk);
+            }
+        }
 
-                template.chunks.put(pos, chunk);
-            }, () -> {
-                LOGGER.warn("Invalid chunk pos key: {}", chunkRoot.get("pos"));
-            });
+        for (var task : blockEntityTasks) {
+            for (var blockEntity : task.join()) {
+                var pos = new BlockPos(
+                        blockEntity.getIntOr("x", 0),
+                        blockEntity.getIntOr("y", 0),
+                        blockEntity.getIntOr("z", 0)
+                );
+                template.setBlockEntityNbt(pos, blockEntity);
+            }
         }
 
         var metadata = template.metadata;
@@ -125,25 +371,8 @@ public final class MapTemplateSerializer {
             metadata.regions.add(TemplateRegion.deserialize(regionRoot));
         }
 
-        var blockEntityList = root.getListOrEmpty("block_entities");
-        for (int i = 0; i < blockEntityList.size(); i++) {
-            var blockEntity = blockEntityList.getCompoundOrEmpty(i);
-
-            if (targetVersion > oldVersion && !SKIP_FIXERS) {
-                // Apply data fixer to block entity
-                Dynamic<Tag> dynamic = new Dynamic<>(NbtOps.INSTANCE, blockEntity);
-                blockEntity = (CompoundTag) fixer.update(References.BLOCK_ENTITY, dynamic, oldVersion, targetVersion).getValue();
-            }
-
-            var pos = new BlockPos(
-                    blockEntity.getIntOr("x", 0),
-                    blockEntity.getIntOr("y", 0),
-                    blockEntity.getIntOr("z", 0)
-            );
-            template.blockEntities.put(pos.asLong(), blockEntity);
-        }
-
-        template.bounds = BlockBounds.deserialize(root.getCompound("bounds").orElse(null));
+        var bounds = BlockBounds.deserialize(root.getCompound("bounds").orElse(null));
+        template.bounds = filter != null ? filterBounds(bounds, filter) : bounds;
         metadata.data = root.getCompound("data").orElse(null);
 
         var biomeIdString = root.getString("biome").orElse("");
@@ -153,17 +382,97 @@ public final class MapTemplateSerializer {
                 template.biome = ResourceKey.create(Registries.BIOME, biomeId);
             }
         }
+
+        return oldVersion;
     }
 
-    private static void updateList(ListTag list, DataFixer fixer, TypeReference type, int oldVersion, int targetVersion) {
-        if (list == null) return;
+    @Nullable
+    private static MapChunk loadChunk(CompoundTag chunkRoot, HolderLookup.Provider registryLookup, DataFixCache fixCache, int oldVersion, int targetVersion, @Nullable BlockBounds filter) {
+        var posArray = chunkRoot.read("pos", Vec3i.CODEC).orElse(null);
+        if (posArray == null) {
+            LOGGER.warn("Invalid chunk pos key: {}", chunkRoot.get("pos"));
+            return null;
+        }
 
-        for (int i = 0; i < list.size(); i++) {
-            var nbt = list.getCompoundOrEmpty(i);
+        var sectionPos = SectionPos.of(posArray.getX(), posArray.getY(), posArray.getZ());
+        if (filter != null) {
+            if (!filter.intersects(sectionBounds(sectionPos))) {
+                return null;
+            }
+            filterEntities(chunkRoot, sectionPos, filter);
+        }
+
+        if (targetVersion > oldVersion) {
+            // Apply data fixer to chunk palette and entities
 
-            Dynamic<Tag> dynamic = new Dynamic<>(NbtOps.INSTANCE, nbt);
-            list.set(i, fixer.update(type, dynamic, oldVersion, targetVersion).getValue());
+            if (oldVersion <= 2730) {
+                var palette = chunkRoot.getListOrEmpty("palette");
+                var blockData = chunkRoot.getLongArray("block_states").orElseGet(() -> new long[0]);
+                chunkRoot.remove("palette");
+
+                var blockStates = new CompoundTag();
+                blockStates.putLongArray("data", blockData);
+                blockStates.put("palette", palette);
+                chunkRoot.put("block_states", blockStates);
+            }
+
+            if (!SKIP_FIXERS) {
+                var palette = chunkRoot.getCompoundOrEmpty("block_states").getListOrEmpty("palette");
+                fixCache.updateBlockStates(palette);
+
+                var entities = chunkRoot.getListOrEmpty("entities");
+                fixCache.updateEntities(entities);
+            } else {
+                LOGGER.error("Couldn't apply datafixers to template because databreaker is present!");
+            }
         }
+
+        return MapChunk.deserialize(sectionPos, chunkRoot, registryLookup);
+    }
+
+    @Nullable
+    private static CompoundTag loadBlockEntity(CompoundTag blockEntity, DataFixCache fixCache, @Nullable BlockBounds filter) {
+        if (filter != null && !filter.contains(blockEntity.getIntOr("x", 0), blockEntity.getIntOr("y", 0), blockEntity.getIntOr("z", 0))) {
+            return null;
+        }
+
+        // Apply data fixer to block entity
+        return fixCache.updateBlockEntity(blockEntity);
+    }
+
+    /**
+     * Clips the bounds of a template to the filter it is loaded with. When they don't intersect, nothing of the
+     * template is loaded, so the result is a single block at the minimum of the filter rather than the whole filter.
+     */
+    static BlockBounds filterBounds(BlockBounds bounds, BlockBounds filter) {
+        var clippedBounds = bounds.intersection(filter);
+        return clippedBounds != null ? clippedBounds : BlockBounds.ofBlock(filter.min());
+    }
+
+    static BlockBounds sectionBounds(SectionPos pos) {
+        return BlockBounds.of(pos.minBlockX(), pos.minBlockY(), pos.minBlockZ(), pos.maxBlockX(), pos.maxBlockY(), pos.maxBlockZ());
+    }
+
+    private static void filterEntities(CompoundTag chunkRoot, SectionPos sectionPos, BlockBounds filter) {
+        var entities = chunkRoot.getListOrEmpty("entities");
+
+        // Entity positions are stored relative to the chunk
+        entities.removeIf(entity -> entity instanceof CompoundTag entityNbt && entityNbt.read("Pos", Vec3.CODEC)
+                .map(pos -> !filter.contains(
+                        sectionPos.minBlockX() + Mth.floor(pos.x),
+                        sectionPos.minBlockY() + Mth.floor(pos.y),
+                        sectionPos.minBlockZ() + Mth.floor(pos.z)
+                ))
+                .orElse(false));
+    }
+
+    static CompoundTag update(CompoundTag nbt, DataFixer fixer, TypeReference type, int oldVersion, int targetVersion) {
+        if (targetVersion <= oldVersion || SKIP_FIXERS) {
+            return nbt;
+        }
+
+        Dynamic<Tag> dynamic = new Dynamic<>(NbtOps.INSTANCE, nbt);
+        return (CompoundTag) fixer.update(type, dynamic, oldVersion, targetVersion).getValue();
     }
 
     private static CompoundTag save(MapTemplate template, HolderLookup.Provider registryLookup) {
@@ -189,7 +498,9 @@ public final class MapTemplateSerializer {
         root.put("chunks", chunkList);
 
         var blockEntityList = new ListTag();
-        blockEntityList.addAll(template.blockEntities.values());
+        for (var chunk : template.chunks.values()) {
+            blockEntityList.addAll(chunk.getBlockEntities().values());
+        }
         root.put("block_entities", blockEntityList);
 
         root.put("bounds", template.bounds.serialize(new CompoundTag()));
@@ -214,4 +525,16 @@ public final class MapTemplateSerializer {
     public static Identifier getResourcePathFor(Identifier identifier) {
         return identifier.withPath(path -> "map_template/" + path + ".nbt");
     }
+
+    public enum Format {
+        /**
+         * The gzip'd NBT format, which stores the template as a single compound tag.
+         */
+        NBT,
+        /**
+         * A gzip'd binary format with a file-wide block state palette, packed per-section index data and
+         * length-prefixed entity and block entity payloads. It is smaller and much faster to load than {@link #NBT}.
+         */
+        COMPACT
+    }
 }
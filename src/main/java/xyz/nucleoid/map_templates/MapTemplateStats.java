@@ -0,0 +1,151 @@
+package xyz.nucleoid.map_templates;
+
+import it.unimi.dsi.fastutil.ints.IntList;
+import net.minecraft.core.SectionPos;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.util.Mth;
+import net.minecraft.world.level.block.Block;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Memory and content statistics of a {@link MapTemplate}, as returned by {@link MapTemplate#stats()}.
+ * <p>
+ * Byte counts are estimates of the retained size of the serialized data, not exact heap usage. The number of
+ * distinct states of every section is cached until the section changes, so after the first computation only modified
+ * sections are scanned, which makes it cheap enough to run from a command or a metrics exporter.
+ *
+ * @param sectionCount the number of sections in the template
+ * @param airSectionCount the number of sections without any non-air blocks
+ * @param totalPaletteSize the sum of the number of distinct block states in every section
+ * @param maxPaletteSize the largest number of distinct block states in a single section
+ * @param bitsPerEntry the immutable number of sections by the bits per block that their states need, by bit count
+ * @param blockBytes the estimated bytes of block data
+ * @param blockEntityBytes the estimated bytes of block entity NBT
+ * @param entityBytes the estimated bytes of entity NBT
+ * @param regionBytes the estimated bytes of region metadata and map data
+ * @param largestSections the largest sections by their estimated bytes, largest first
+ */
+public record MapTemplateStats(
+        int sectionCount,
+        int airSectionCount,
+        long totalPaletteSize,
+        int maxPaletteSize,
+        IntList bitsPerEntry,
+        long blockBytes,
+        long blockEntityBytes,
+        long entityBytes,
+        long regionBytes,
+        List<Section> largestSections
+) {
+    private static final int LARGEST_SECTION_COUNT = 8;
+
+    // Containers with more states than fit a hash palette store global registry ids instead
+    private static final int MAX_PALETTE_BITS = 8;
+    private static final int MIN_PALETTE_BITS = 4;
+
+    public long totalBytes() {
+        return this.blockBytes + this.blockEntityBytes + this.entityBytes + this.regionBytes;
+    }
+
+    public double averagePaletteSize() {
+        return this.sectionCount > 0 ? (double) this.totalPaletteSize / this.sectionCount : 0.0;
+    }
+
+    static MapTemplateStats compute(MapTemplate template) {
+        int globalBits = Mth.ceillog2(Block.BLOCK_STATE_REGISTRY.size());
+
+        int sectionCount = 0;
+        int airSectionCount = 0;
+        long totalPaletteSize = 0;
+        int maxPaletteSize = 0;
+        var bitsPerEntry = new int[globalBits + 1];
+
+        long blockBytes = 0;
+        long blockEntityBytes = 0;
+        long entityBytes = 0;
+
+        var largest = new PriorityQueue<>(Comparator.comparingLong(Section::bytes));
+
+        for (var chunk : template.chunks.values()) {
+            sectionCount++;
+            if (!chunk.hasBlocks()) {
+                airSectionCount++;
+            }
+
+            int paletteSize = chunk.countStates();
+            totalPaletteSize += paletteSize;
+            maxPaletteSize = Math.max(maxPaletteSize, paletteSize);
+            bitsPerEntry[bitsFor(paletteSize, globalBits)]++;
+
+            long chunkBlockBytes = chunk.estimateBlockSize();
+
+            long chunkBlockEntityBytes = 0;
+            for (var nbt : chunk.getBlockEntities().values()) {
+                chunkBlockEntityBytes += nbt.sizeInBytes();
+            }
+
+            long chunkEntityBytes = 0;
+            for (var entity : chunk.getEntities()) {
+                chunkEntityBytes += entity.nbt().sizeInBytes();
+            }
+
+            blockBytes += chunkBlockBytes;
+            blockEntityBytes += chunkBlockEntityBytes;
+            entityBytes += chunkEntityBytes;
+
+            var section = new Section(chunk.getPos(), paletteSize, chunk.getNonAirCount(), chunkBlockBytes + chunkBlockEntityBytes + chunkEntityBytes);
+            if (largest.size() < LARGEST_SECTION_COUNT) {
+                largest.add(section);
+            } else if (section.bytes() > largest.peek().bytes()) {
+                largest.poll();
+                largest.add(section);
+            }
+        }
+
+        var metadata = template.getMetadata();
+        long regionBytes = sizeOf(metadata.data);
+        for (var region : metadata.getRegions()) {
+            // The marker, the six bound coordinates and the region data
+            regionBytes += region.getMarker().length() + 6 * Integer.BYTES + sizeOf(region.data);
+        }
+
+        var largestSections = new ArrayList<>(largest);
+        largestSections.sort(Comparator.comparingLong(Section::bytes).reversed());
+
+        return new MapTemplateStats(
+                sectionCount, airSectionCount,
+                totalPaletteSize, maxPaletteSize, IntList.of(bitsPerEntry),
+                blockBytes, blockEntityBytes, entityBytes, regionBytes,
+                List.copyOf(largestSections)
+        );
+    }
+
+    private static long sizeOf(@Nullable CompoundTag nbt) {
+        return nbt != null ? nbt.sizeInBytes() : 0;
+    }
+
+    private static int bitsFor(int paletteSize, int globalBits) {
+        if (paletteSize <= 1) {
+            return 0;
+        }
+
+        int bits = Mth.ceillog2(paletteSize);
+        return bits <= MAX_PALETTE_BITS ? Math.max(bits, MIN_PALETTE_BITS) : globalBits;
+    }
+
+    /**
+     * The statistics of a single template section.
+     *
+     * @param pos the position of the section
+     * @param paletteSize the number of distinct block states in the section
+     * @param nonAirCount the number of non-air blocks in the section
+     * @param bytes the estimated bytes of the blocks, block entities and entities of the section
+     */
+    public record Section(SectionPos pos, int paletteSize, int nonAirCount, long bytes) {
+    }
+}
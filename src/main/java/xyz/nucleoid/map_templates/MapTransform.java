@@ -19,6 +19,11 @@ public interface MapTransform {
             public Vec3 transformedPoint(Vec3 pos) {
                 return pos.add(x, y, z);
             }
+
+            @Override
+            public boolean isRigid() {
+                return true;
+            }
         };
     }
 
@@ -45,6 +50,11 @@ public interface MapTransform {
             public BlockState transformedBlock(BlockState state) {
                 return state.mirror(mirror).rotate(rotation);
             }
+
+            @Override
+            public boolean isRigid() {
+                return true;
+            }
         };
     }
 
@@ -68,4 +78,14 @@ public interface MapTransform {
     default BlockState transformedBlock(BlockState state) {
         return state;
     }
+
+    /**
+     * Returns whether this transform is only made up of translation, rotation and mirroring, so that it maps every
+     * 16x16x16 section onto a 16x16x16 box by the same permutation, and always transforms a block state the same way.
+     *
+     * @return whether this transform is rigid
+     */
+    default boolean isRigid() {
+        return false;
+    }
 }
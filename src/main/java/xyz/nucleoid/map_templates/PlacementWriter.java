@@ -0,0 +1,394 @@
+package xyz.nucleoid.map_templates;
+
+import com.mojang.logging.LogUtils;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.util.ProblemReporter;
+import net.minecraft.world.entity.ai.village.poi.PoiTypes;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraft.world.level.levelgen.Heightmap;
+import net.minecraft.world.level.lighting.LightEngine;
+import net.minecraft.world.level.storage.TagValueInput;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Writes blocks straight into the sections of world chunks, skipping the per-block bookkeeping that
+ * {@link LevelChunk#setBlockState} does.
+ * <p>
+ * Block entities and {@code onPlace} callbacks are always handled by {@link #flush()}. Heightmaps and lighting are
+ * updated per block, unless they are deferred, in which case they are fixed up once per touched section or chunk
+ * when flushing.
+ */
+final class PlacementWriter {
+    private static final Logger LOGGER = LogUtils.getLogger();
+
+    private final ServerLevel world;
+
+    private final boolean neighborUpdates;
+    private final boolean deferLighting;
+    private final boolean deferHeightmaps;
+
+    private final Long2ObjectMap<LevelChunk> chunks = new Long2ObjectOpenHashMap<>();
+
+    private final Long2ObjectMap<LevelChunkSection> dirtySections = new Long2ObjectOpenHashMap<>();
+    private final LongSet emptySections = new LongOpenHashSet();
+    private final LongSet dirtyChunks = new LongOpenHashSet();
+
+    // Local indices of the blocks that changed their light properties, by section, to be checked once when flushing
+    private final Long2ObjectMap<BitSet> lightChecks = new Long2ObjectOpenHashMap<>();
+    private final LongSet blockEntities = new LongOpenHashSet();
+    private final Long2ObjectMap<CompoundTag> blockEntityNbt = new Long2ObjectOpenHashMap<>();
+
+    private final LongArrayList placedPositions = new LongArrayList();
+    private final List<BlockState> replacedStates = new ArrayList<>();
+
+    private final BlockPos.MutableBlockPos mutablePos = new BlockPos.MutableBlockPos();
+
+    private long lastSectionPos = Long.MAX_VALUE;
+    private LevelChunk lastChunk;
+    private LevelChunkSection lastSection;
+    private Heightmap[] lastHeightmaps;
+    private BitSet lastLightChecks;
+
+    /**
+     * Creates a writer that defers all lighting and heightmap work and does not run {@code onPlace} callbacks.
+     */
+    PlacementWriter(ServerLevel world) {
+        this(world, false, true, true);
+    }
+
+    PlacementWriter(ServerLevel world, boolean neighborUpdates, boolean deferLighting, boolean deferHeightmaps) {
+        this.world = world;
+        this.neighborUpdates = neighborUpdates;
+        this.deferLighting = deferLighting;
+        this.deferHeightmaps = deferHeightmaps;
+    }
+
+    static PlacementWriter create(ServerLevel world, Set<MapTemplatePlacer.Flag> flags) {
+        if (flags.contains(MapTemplatePlacer.Flag.COPY_SECTIONS)) {
+            return new PlacementWriter(world);
+        }
+
+        return new PlacementWriter(
+                world,
+                !flags.contains(MapTemplatePlacer.Flag.NO_NEIGHBOR_UPDATES),
+                flags.contains(MapTemplatePlacer.Flag.DEFER_LIGHTING),
+                flags.contains(MapTemplatePlacer.Flag.DEFER_HEIGHTMAPS)
+        );
+    }
+
+    ServerLevel world() {
+        return this.world;
+    }
+
+    /**
+     * Returns every chunk that this writer has looked up so far.
+     */
+    Collection<LevelChunk> chunks() {
+        return this.chunks.values();
+    }
+
+    LevelChunk getChunk(int chunkX, int chunkZ) {
+        long chunkPos = ChunkPos.pack(chunkX, chunkZ);
+        var chunk = this.chunks.get(chunkPos);
+        if (chunk == null) {
+            chunk = this.world.getChunk(chunkX, chunkZ);
+            this.chunks.put(chunkPos, chunk);
+        }
+        return chunk;
+    }
+
+    /**
+     * Sets the block at the given world position.
+     *
+     * @return {@code false} if the position is outside the build height of the world
+     */
+    boolean setBlock(int x, int y, int z, BlockState state) {
+        long sectionPos = SectionPos.asLong(x >> 4, y >> 4, z >> 4);
+        if (sectionPos != this.lastSectionPos && !this.selectSection(sectionPos)) {
+            return false;
+        }
+
+        this.writeBlock(x, y, z, state);
+        return true;
+    }
+
+    /**
+     * Sets blocks within a single world section, given by their local indices as {@code y << 8 | z << 4 | x}. The
+     * section is only looked up once, rather than once per block.
+     *
+     * @return the number of blocks written, or 0 if the section is outside the build height of the world
+     */
+    int setBlocks(long sectionPos, short[] indices, BlockState[] states) {
+        if (sectionPos != this.lastSectionPos && !this.selectSection(sectionPos)) {
+            return 0;
+        }
+
+        int minX = SectionPos.sectionToBlockCoord(SectionPos.x(sectionPos));
+        int minY = SectionPos.sectionToBlockCoord(SectionPos.y(sectionPos));
+        int minZ = SectionPos.sectionToBlockCoord(SectionPos.z(sectionPos));
+
+        for (int i = 0; i < indices.length; i++) {
+            int index = indices[i];
+            this.writeBlock(minX + (index & 15), minY + (index >> 8 & 15), minZ + (index >> 4 & 15), states[i]);
+        }
+
+        return indices.length;
+    }
+
+    private void writeBlock(int x, int y, int z, BlockState state) {
+        var section = this.lastSection;
+
+        // Block counts are only needed by the world before flushing when something reads it between blocks
+        BlockState oldState;
+        if (this.deferLighting && this.deferHeightmaps) {
+            oldState = section.getStates().getAndSetUnchecked(x & 15, y & 15, z & 15, state);
+        } else {
+            oldState = section.setBlockState(x & 15, y & 15, z & 15, state, false);
+        }
+
+        if (oldState == state) {
+            return;
+        }
+
+        var chunk = this.lastChunk;
+        long pos = BlockPos.asLong(x, y, z);
+
+        if (!this.deferHeightmaps) {
+            for (var heightmap : this.lastHeightmaps) {
+                heightmap.update(x & 15, y, z & 15, state);
+            }
+        }
+
+        if (oldState.hasBlockEntity() && !state.is(oldState.getBlock())) {
+            chunk.removeBlockEntity(this.mutablePos.set(x, y, z));
+        }
+        if (state.hasBlockEntity()) {
+            this.blockEntities.add(pos);
+        }
+
+        if (PoiTypes.hasPoi(oldState) || PoiTypes.hasPoi(state)) {
+            this.updatePoi(this.mutablePos.set(x, y, z).immutable(), oldState, state);
+        }
+
+        if (LightEngine.hasDifferentLightProperties(oldState, state)) {
+            if (this.deferLighting) {
+                if (this.lastLightChecks == null) {
+                    this.lastLightChecks = this.lightChecks.computeIfAbsent(this.lastSectionPos, p -> new BitSet(16 * 16 * 16));
+                }
+                this.lastLightChecks.set((y & 15) << 8 | (z & 15) << 4 | (x & 15));
+            } else {
+                chunk.getSkyLightSources().update(chunk, x & 15, y, z & 15);
+                this.world.getChunkSource().getLightEngine().checkBlock(BlockPos.of(pos));
+            }
+        }
+
+        if (this.neighborUpdates) {
+            this.placedPositions.add(pos);
+            this.replacedStates.add(oldState);
+        }
+    }
+
+    /**
+     * Queues block entity data to be loaded into the block entity at the given world position once it has been
+     * created by {@link #flush()}.
+     * <p>
+     * Loading a block entity only reads the given tag, so template NBT can be passed in without copying it, and the
+     * same tag may be shared between any number of placements.
+     */
+    void setBlockEntityNbt(BlockPos pos, CompoundTag nbt) {
+        this.blockEntities.add(pos.asLong());
+        this.blockEntityNbt.put(pos.asLong(), nbt);
+    }
+
+    private boolean selectSection(long sectionPos) {
+        var chunk = this.getChunk(SectionPos.x(sectionPos), SectionPos.z(sectionPos));
+
+        int sectionIndex = chunk.getSectionIndexFromSectionY(SectionPos.y(sectionPos));
+        if (sectionIndex < 0 || sectionIndex >= chunk.getSectionsCount()) {
+            return false;
+        }
+
+        var section = chunk.getSection(sectionIndex);
+        if (this.dirtySections.putIfAbsent(sectionPos, section) == null) {
+            if (section.hasOnlyAir()) {
+                if (this.deferLighting) {
+                    this.emptySections.add(sectionPos);
+                } else {
+                    // We only ever write non-air blocks, so the section is about to stop being empty
+                    this.world.getChunkSource().getLightEngine().updateSectionStatus(SectionPos.of(sectionPos), false);
+                }
+            }
+            this.dirtyChunks.add(ChunkPos.pack(SectionPos.x(sectionPos), SectionPos.z(sectionPos)));
+        }
+
+        if (chunk != this.lastChunk && !this.deferHeightmaps) {
+            var heightmaps = new ArrayList<Heightmap>();
+            for (var entry : chunk.getHeightmaps()) {
+                heightmaps.add(entry.getValue());
+            }
+            this.lastHeightmaps = heightmaps.toArray(Heightmap[]::new);
+        }
+
+        this.lastSectionPos = sectionPos;
+        this.lastChunk = chunk;
+        this.lastSection = section;
+        this.lastLightChecks = null;
+
+        return true;
+    }
+
+    private void updatePoi(BlockPos pos, BlockState oldState, BlockState state) {
+        var poiManager = this.world.getPoiManager();
+
+        var oldType = PoiTypes.forState(oldState);
+        var newType = PoiTypes.forState(state);
+        if (oldType.equals(newType)) {
+            return;
+        }
+
+        oldType.ifPresent(type -> poiManager.remove(pos));
+        newType.ifPresent(type -> poiManager.add(pos, type));
+    }
+
+    /**
+     * Fixes up all sections and chunks touched since the last flush: recalculates block counts, rebuilds deferred
+     * heightmaps and sky light sources, queues a light check for every position with deferred light changes, creates
+     * and loads block entities, and finally runs {@code onPlace} callbacks.
+     *
+     * @return the chunks with blocks written since the last flush
+     */
+    List<LevelChunk> flush() {
+        var lightEngine = this.world.getChunkSource().getLightEngine();
+
+        for (var entry : Long2ObjectMaps.fastIterable(this.dirtySections)) {
+            long sectionPos = entry.getLongKey();
+            var section = entry.getValue();
+
+            section.recalcBlockCounts();
+
+            if (this.deferLighting) {
+                boolean empty = section.hasOnlyAir();
+                if (empty != this.emptySections.contains(sectionPos)) {
+                    lightEngine.updateSectionStatus(SectionPos.of(sectionPos), empty);
+                }
+            }
+        }
+
+        var heightmapTypes = EnumSet.noneOf(Heightmap.Types.class);
+        var flushedChunks = new ArrayList<LevelChunk>(this.dirtyChunks.size());
+
+        LongIterator chunkIterator = this.dirtyChunks.iterator();
+        while (chunkIterator.hasNext()) {
+            var chunk = this.chunks.get(chunkIterator.nextLong());
+            flushedChunks.add(chunk);
+
+            if (this.deferHeightmaps) {
+                heightmapTypes.clear();
+                for (var heightmap : chunk.getHeightmaps()) {
+                    heightmapTypes.add(heightmap.getKey());
+                }
+                Heightmap.primeHeightmaps(chunk, heightmapTypes);
+            }
+
+            if (this.deferLighting) {
+                chunk.getSkyLightSources().fillFrom(chunk);
+            }
+
+            chunk.markUnsaved();
+        }
+
+        // Checking every changed position lets the light engine remove light as well as propagate it
+        for (var entry : Long2ObjectMaps.fastIterable(this.lightChecks)) {
+            long sectionPos = entry.getLongKey();
+            int minX = SectionPos.sectionToBlockCoord(SectionPos.x(sectionPos));
+            int minY = SectionPos.sectionToBlockCoord(SectionPos.y(sectionPos));
+            int minZ = SectionPos.sectionToBlockCoord(SectionPos.z(sectionPos));
+
+            var indices = entry.getValue();
+            for (int index = indices.nextSetBit(0); index >= 0; index = indices.nextSetBit(index + 1)) {
+                lightEngine.checkBlock(new BlockPos(minX + (index & 15), minY + (index >> 8), minZ + (index >> 4 & 15)));
+            }
+        }
+
+        this.flushBlockEntities();
+        this.flushNeighborUpdates();
+
+        this.dirtySections.clear();
+        this.emptySections.clear();
+        this.dirtyChunks.clear();
+        this.lightChecks.clear();
+        this.lastSectionPos = Long.MAX_VALUE;
+        this.lastChunk = null;
+        this.lastSection = null;
+        this.lastHeightmaps = null;
+        this.lastLightChecks = null;
+
+        return flushedChunks;
+    }
+
+    private void flushNeighborUpdates() {
+        var world = this.world;
+        for (int i = 0; i < this.placedPositions.size(); i++) {
+            var pos = BlockPos.of(this.placedPositions.getLong(i));
+            world.getBlockState(pos).onPlace(world, pos, this.replacedStates.get(i), false);
+        }
+
+        this.placedPositions.clear();
+        this.replacedStates.clear();
+    }
+
+    private void flushBlockEntities() {
+        if (this.blockEntities.isEmpty()) {
+            return;
+        }
+
+        var access = this.world.registryAccess();
+
+        try (var reporter = new ProblemReporter.ScopedCollector(LOGGER)) {
+            LongIterator iterator = this.blockEntities.iterator();
+            while (iterator.hasNext()) {
+                long pos = iterator.nextLong();
+                var blockPos = BlockPos.of(pos);
+
+                var chunk = this.getChunk(blockPos.getX() >> 4, blockPos.getZ() >> 4);
+                var blockEntity = chunk.getBlockEntity(blockPos, LevelChunk.EntityCreationType.IMMEDIATE);
+                if (blockEntity == null) {
+                    continue;
+                }
+
+                var state = chunk.getBlockState(blockPos);
+                if (blockEntity.getBlockState() != state) {
+                    blockEntity.setBlockState(state);
+                }
+
+                var nbt = this.blockEntityNbt.remove(pos);
+                if (nbt != null) {
+                    blockEntity.loadWithComponents(TagValueInput.create(reporter.forChild(blockEntity.problemPath()), access, nbt));
+                }
+            }
+        }
+
+        this.blockEntities.clear();
+        this.blockEntityNbt.clear();
+    }
+}
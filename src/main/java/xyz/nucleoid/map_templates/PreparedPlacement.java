@@ -0,0 +1,79 @@
+package xyz.nucleoid.map_templates;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.block.state.BlockState;
+
+import java.util.List;
+
+/**
+ * Represents a map template placement that has been fully prepared for a specific world origin, and only needs to be
+ * written into the world.
+ * <p>
+ * Instances are created by {@link MapTemplatePlacer#prepare(BlockPos, java.util.concurrent.Executor)} off the server
+ * thread, and must then be applied on the server thread with {@link #apply(ServerLevel)}.
+ */
+public final class PreparedPlacement {
+    private final Long2ObjectMap<BlockState[]> sections;
+    private final Long2ObjectMap<CompoundTag> blockEntities;
+    private final List<CompoundTag> entities;
+
+    PreparedPlacement(Long2ObjectMap<BlockState[]> sections, Long2ObjectMap<CompoundTag> blockEntities, List<CompoundTag> entities) {
+        this.sections = sections;
+        this.blockEntities = blockEntities;
+        this.entities = entities;
+    }
+
+    /**
+     * Writes the prepared blocks, block entities and entities into the given world. This must be called on the
+     * server thread, and may only be called once.
+     *
+     * @param world the world to place into
+     */
+    public void apply(ServerLevel world) {
+        var writer = new PlacementWriter(world);
+
+        for (var entry : Long2ObjectMaps.fastIterable(this.sections)) {
+            long sectionPos = entry.getLongKey();
+            var states = entry.getValue();
+
+            int minX = SectionPos.sectionToBlockCoord(SectionPos.x(sectionPos));
+            int minY = SectionPos.sectionToBlockCoord(SectionPos.y(sectionPos));
+            int minZ = SectionPos.sectionToBlockCoord(SectionPos.z(sectionPos));
+
+            for (int index = 0; index < states.length; index++) {
+                var state = states[index];
+                if (state != null) {
+                    writer.setBlock(minX + (index & 15), minY + (index >> 8 & 15), minZ + (index >> 4 & 15), state);
+                }
+            }
+        }
+
+        for (var entry : Long2ObjectMaps.fastIterable(this.blockEntities)) {
+            writer.setBlockEntityNbt(BlockPos.of(entry.getLongKey()), entry.getValue());
+        }
+
+        writer.flush();
+
+        for (var nbt : this.entities) {
+            MapEntity.loadEntities(world, nbt, world::addFreshEntity);
+        }
+    }
+
+    /**
+     * Returns the number of world sections that this placement writes to.
+     *
+     * @return the number of world sections
+     */
+    public int sectionCount() {
+        return this.sections.size();
+    }
+
+    static int index(int x, int y, int z) {
+        return (y & 15) << 8 | (z & 15) << 4 | (x & 15);
+    }
+}
@@ -0,0 +1,212 @@
+package xyz.nucleoid.map_templates;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Immutable index over the regions of a {@link MapTemplateMetadata}, with a hash index by marker and a bounding
+ * volume hierarchy over the region bounds.
+ * <p>
+ * The hierarchy is stored in flat arrays in depth-first order, where the left child of a node directly follows it.
+ * Queries walk it recursively, so they don't allocate.
+ */
+final class RegionIndex {
+    private static final int LEAF_SIZE = 4;
+
+    // Markers with at most this many regions are queried by scanning their regions rather than the hierarchy
+    private static final int MARKER_SCAN_THRESHOLD = 16;
+
+    private final Map<String, List<TemplateRegion>> byMarker = new HashMap<>();
+
+    private final TemplateRegion[] regions;
+
+    private int nodes;
+    private int[] nodeBounds;
+    private int[] nodeStart;
+    private int[] nodeCount;
+    private int[] nodeRight;
+
+    RegionIndex(List<TemplateRegion> regions) {
+        for (var region : regions) {
+            this.byMarker.computeIfAbsent(region.getMarker(), marker -> new ArrayList<>()).add(region);
+        }
+
+        this.regions = regions.toArray(new TemplateRegion[0]);
+
+        int maxNodes = Math.max(1, 2 * Math.ceilDiv(this.regions.length, LEAF_SIZE));
+        this.nodeBounds = new int[maxNodes * 6];
+        this.nodeStart = new int[maxNodes];
+        this.nodeCount = new int[maxNodes];
+        this.nodeRight = new int[maxNodes];
+
+        if (this.regions.length > 0) {
+            this.build(0, this.regions.length);
+        }
+    }
+
+    List<TemplateRegion> getRegions(String marker) {
+        return this.byMarker.getOrDefault(marker, List.of());
+    }
+
+    void forEachContaining(int x, int y, int z, @Nullable String marker, Consumer<TemplateRegion> consumer) {
+        if (marker != null) {
+            var regions = this.getRegions(marker);
+            if (regions.size() <= MARKER_SCAN_THRESHOLD) {
+                for (int i = 0; i < regions.size(); i++) {
+                    var region = regions.get(i);
+                    if (region.getBounds().contains(x, y, z)) {
+                        consumer.accept(region);
+                    }
+                }
+                return;
+            }
+        }
+
+        if (this.nodes > 0) {
+            this.forEachContaining(0, x, y, z, marker, consumer);
+        }
+    }
+
+    void forEachIntersecting(BlockBounds bounds, @Nullable String marker, Consumer<TemplateRegion> consumer) {
+        if (marker != null) {
+            var regions = this.getRegions(marker);
+            if (regions.size() <= MARKER_SCAN_THRESHOLD) {
+                for (int i = 0; i < regions.size(); i++) {
+                    var region = regions.get(i);
+                    if (region.getBounds().intersects(bounds)) {
+                        consumer.accept(region);
+                    }
+                }
+                return;
+            }
+        }
+
+        if (this.nodes > 0) {
+            var min = bounds.min();
+            var max = bounds.max();
+            this.forEachIntersecting(0, min.getX(), min.getY(), min.getZ(), max.getX(), max.getY(), max.getZ(), marker, consumer);
+        }
+    }
+
+    private void forEachContaining(int node, int x, int y, int z, @Nullable String marker, Consumer<TemplateRegion> consumer) {
+        int offset = node * 6;
+        var nodeBounds = this.nodeBounds;
+        if (x < nodeBounds[offset] || y < nodeBounds[offset + 1] || z < nodeBounds[offset + 2]
+                || x > nodeBounds[offset + 3] || y > nodeBounds[offset + 4] || z > nodeBounds[offset + 5]) {
+            return;
+        }
+
+        int count = this.nodeCount[node];
+        if (count > 0) {
+            int start = this.nodeStart[node];
+            for (int i = start; i < start + count; i++) {
+                var region = this.regions[i];
+                if (region.getBounds().contains(x, y, z) && matches(region, marker)) {
+                    consumer.accept(region);
+                }
+            }
+        } else {
+            this.forEachContaining(node + 1, x, y, z, marker, consumer);
+            this.forEachContaining(this.nodeRight[node], x, y, z, marker, consumer);
+        }
+    }
+
+    private void forEachIntersecting(int node, int minX, int minY, int minZ, int maxX, int maxY, int maxZ, @Nullable String marker, Consumer<TemplateRegion> consumer) {
+        int offset = node * 6;
+        var nodeBounds = this.nodeBounds;
+        if (maxX < nodeBounds[offset] || maxY < nodeBounds[offset + 1] || maxZ < nodeBounds[offset + 2]
+                || minX > nodeBounds[offset + 3] || minY > nodeBounds[offset + 4] || minZ > nodeBounds[offset + 5]) {
+            return;
+        }
+
+        int count = this.nodeCount[node];
+        if (count > 0) {
+            int start = this.nodeStart[node];
+            for (int i = start; i < start + count; i++) {
+                var region = this.regions[i];
+                var bounds = region.getBounds();
+                if (bounds.max().getX() >= minX && bounds.max().getY() >= minY && bounds.max().getZ() >= minZ
+                        && bounds.min().getX() <= maxX && bounds.min().getY() <= maxY && bounds.min().getZ() <= maxZ
+                        && matches(region, marker)) {
+                    consumer.accept(region);
+                }
+            }
+        } else {
+            this.forEachIntersecting(node + 1, minX, minY, minZ, maxX, maxY, maxZ, marker, consumer);
+            this.forEachIntersecting(this.nodeRight[node], minX, minY, minZ, maxX, maxY, maxZ, marker, consumer);
+        }
+    }
+
+    private static boolean matches(TemplateRegion region, @Nullable String marker) {
+        return marker == null || marker.equals(region.getMarker());
+    }
+
+    private int build(int start, int end) {
+        int node = this.nodes++;
+        this.ensureCapacity(this.nodes);
+
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+        for (int i = start; i < end; i++) {
+            var bounds = this.regions[i].getBounds();
+            minX = Math.min(minX, bounds.min().getX());
+            minY = Math.min(minY, bounds.min().getY());
+            minZ = Math.min(minZ, bounds.min().getZ());
+            maxX = Math.max(maxX, bounds.max().getX());
+            maxY = Math.max(maxY, bounds.max().getY());
+            maxZ = Math.max(maxZ, bounds.max().getZ());
+        }
+
+        int offset = node * 6;
+        this.nodeBounds[offset] = minX;
+        this.nodeBounds[offset + 1] = minY;
+        this.nodeBounds[offset + 2] = minZ;
+        this.nodeBounds[offset + 3] = maxX;
+        this.nodeBounds[offset + 4] = maxY;
+        this.nodeBounds[offset + 5] = maxZ;
+
+        if (end - start <= LEAF_SIZE) {
+            this.nodeStart[node] = start;
+            this.nodeCount[node] = end - start;
+            return node;
+        }
+
+        // Split at the median of the region centers along the longest axis
+        long sizeX = (long) maxX - minX;
+        long sizeY = (long) maxY - minY;
+        long sizeZ = (long) maxZ - minZ;
+
+        Comparator<TemplateRegion> comparator;
+        if (sizeX >= sizeY && sizeX >= sizeZ) {
+            comparator = Comparator.comparingLong(region -> (long) region.getBounds().min().getX() + region.getBounds().max().getX());
+        } else if (sizeY >= sizeZ) {
+            comparator = Comparator.comparingLong(region -> (long) region.getBounds().min().getY() + region.getBounds().max().getY());
+        } else {
+            comparator = Comparator.comparingLong(region -> (long) region.getBounds().min().getZ() + region.getBounds().max().getZ());
+        }
+        Arrays.sort(this.regions, start, end, comparator);
+
+        int middle = (start + end) >>> 1;
+        this.build(start, middle);
+        this.nodeRight[node] = this.build(middle, end);
+
+        return node;
+    }
+
+    private void ensureCapacity(int nodes) {
+        if (nodes > this.nodeStart.length) {
+            int capacity = Math.max(nodes, this.nodeStart.length * 2);
+            this.nodeBounds = Arrays.copyOf(this.nodeBounds, capacity * 6);
+            this.nodeStart = Arrays.copyOf(this.nodeStart, capacity);
+            this.nodeCount = Arrays.copyOf(this.nodeCount, capacity);
+            this.nodeRight = Arrays.copyOf(this.nodeRight, capacity);
+        }
+    }
+}
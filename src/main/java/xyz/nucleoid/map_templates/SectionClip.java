@@ -0,0 +1,54 @@
+package xyz.nucleoid.map_templates;
+
+import net.minecraft.core.SectionPos;
+
+/**
+ * The part of a chunk section that lies within some bounds, in local coordinates of the section. A clip is empty when
+ * the section doesn't intersect the bounds at all.
+ *
+ * @param minX the minimum local X-coordinate, inclusive
+ * @param minY the minimum local Y-coordinate, inclusive
+ * @param minZ the minimum local Z-coordinate, inclusive
+ * @param maxX the maximum local X-coordinate, inclusive
+ * @param maxY the maximum local Y-coordinate, inclusive
+ * @param maxZ the maximum local Z-coordinate, inclusive
+ */
+record SectionClip(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+    static SectionClip of(BlockBounds bounds, SectionPos pos) {
+        return of(bounds, pos.getX(), pos.getY(), pos.getZ());
+    }
+
+    static SectionClip of(BlockBounds bounds, int sectionX, int sectionY, int sectionZ) {
+        int originX = SectionPos.sectionToBlockCoord(sectionX);
+        int originY = SectionPos.sectionToBlockCoord(sectionY);
+        int originZ = SectionPos.sectionToBlockCoord(sectionZ);
+
+        var min = bounds.min();
+        var max = bounds.max();
+
+        return new SectionClip(
+                Math.max(min.getX() - originX, 0), Math.max(min.getY() - originY, 0), Math.max(min.getZ() - originZ, 0),
+                Math.min(max.getX() - originX, 15), Math.min(max.getY() - originY, 15), Math.min(max.getZ() - originZ, 15)
+        );
+    }
+
+    /**
+     * Returns whether the given section intersects the given bounds, without computing its clip.
+     */
+    static boolean intersects(BlockBounds bounds, SectionPos pos) {
+        return pos.getX() >= bounds.min().getX() >> 4 && pos.getX() <= bounds.max().getX() >> 4
+                && pos.getY() >= bounds.min().getY() >> 4 && pos.getY() <= bounds.max().getY() >> 4
+                && pos.getZ() >= bounds.min().getZ() >> 4 && pos.getZ() <= bounds.max().getZ() >> 4;
+    }
+
+    boolean isEmpty() {
+        return this.minX > this.maxX || this.minY > this.maxY || this.minZ > this.maxZ;
+    }
+
+    /**
+     * Returns whether the bounds cover the whole section.
+     */
+    boolean coversSection() {
+        return this.minX == 0 && this.minY == 0 && this.minZ == 0 && this.maxX == 15 && this.maxY == 15 && this.maxZ == 15;
+    }
+}
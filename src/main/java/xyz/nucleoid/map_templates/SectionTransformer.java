@@ -0,0 +1,215 @@
+package xyz.nucleoid.map_templates;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMaps;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.objects.Reference2ReferenceOpenHashMap;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.world.level.block.state.BlockState;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Transforms the blocks and block entities of template sections a whole section at a time.
+ * <p>
+ * For {@link MapTransform#isRigid() rigid} transforms, the positions within a section map onto their destination
+ * by a fixed permutation. The destination of a section is a 16^3 box that straddles at most 8 destination sections,
+ * so its blocks are copied straight into those without transforming any positions. Every distinct block state is
+ * only transformed once.
+ * <p>
+ * Instances are not thread-safe.
+ */
+final class SectionTransformer {
+    private final MapTransform transform;
+
+    @Nullable
+    private final int[] permutation;
+    private int minOffsetX;
+    private int minOffsetY;
+    private int minOffsetZ;
+
+    // The destination sections of the current section, indexed by which side of the section grid they lie on per axis
+    private final MapChunk[] destChunks = new MapChunk[8];
+
+    private final Reference2ReferenceOpenHashMap<BlockState, BlockState> states = new Reference2ReferenceOpenHashMap<>();
+
+    private final BlockPos.MutableBlockPos mutablePos = new BlockPos.MutableBlockPos();
+
+    SectionTransformer(MapTransform transform) {
+        this.transform = transform;
+        this.permutation = transform.isRigid() ? this.computePermutation() : null;
+    }
+
+    @Nullable
+    private int[] computePermutation() {
+        var transform = this.transform;
+        var zero = transform.transformedPoint(BlockPos.ZERO);
+
+        var offsets = new BlockPos[16 * 16 * 16];
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int minZ = Integer.MAX_VALUE;
+
+        for (int index = 0; index < offsets.length; index++) {
+            var offset = transform.transformedPoint(new BlockPos(index & 15, index >> 8, index >> 4 & 15)).subtract(zero);
+            offsets[index] = offset;
+
+            minX = Math.min(minX, offset.getX());
+            minY = Math.min(minY, offset.getY());
+            minZ = Math.min(minZ, offset.getZ());
+        }
+
+        var permutation = new int[offsets.length];
+        var seen = new boolean[offsets.length];
+
+        for (int index = 0; index < offsets.length; index++) {
+            int x = offsets[index].getX() - minX;
+            int y = offsets[index].getY() - minY;
+            int z = offsets[index].getZ() - minZ;
+
+            // Bail out if the transform doesn't actually map the section onto a 16^3 box one-to-one
+            if ((x | y | z) < 0 || x > 15 || y > 15 || z > 15) {
+                return null;
+            }
+
+            int destIndex = y << 8 | z << 4 | x;
+            if (seen[destIndex]) {
+                return null;
+            }
+
+            seen[destIndex] = true;
+            permutation[index] = destIndex;
+        }
+
+        this.minOffsetX = minX;
+        this.minOffsetY = minY;
+        this.minOffsetZ = minZ;
+
+        return permutation;
+    }
+
+    /**
+     * Transforms the blocks of the given section and writes them into the given destination sections, creating
+     * them where needed.
+     */
+    void transformBlocks(MapChunk chunk, Long2ObjectMap<MapChunk> target) {
+        if (!chunk.hasBlocks()) {
+            return;
+        }
+
+        var origin = chunk.getPos().origin();
+
+        var permutation = this.permutation;
+        if (permutation != null) {
+            var destOrigin = this.transform.transformedPoint(origin);
+            int minX = destOrigin.getX() + this.minOffsetX;
+            int minY = destOrigin.getY() + this.minOffsetY;
+            int minZ = destOrigin.getZ() + this.minOffsetZ;
+
+            this.transformPermuted(chunk, target, permutation, minX, minY, minZ);
+            return;
+        }
+
+        var mutablePos = this.mutablePos;
+
+        long lastChunkPos = Long.MAX_VALUE;
+        MapChunk lastChunk = null;
+
+        for (int index = 0; index < 16 * 16 * 16; index++) {
+            int x = index & 15;
+            int y = index >> 8;
+            int z = index >> 4 & 15;
+
+            var state = chunk.get(x, y, z);
+            if (state.isAir()) {
+                continue;
+            }
+
+            mutablePos.setWithOffset(origin, x, y, z);
+            this.transform.transformPoint(mutablePos);
+
+            long chunkPos = MapTemplate.chunkPos(mutablePos);
+            if (chunkPos != lastChunkPos) {
+                lastChunk = getOrCreateChunk(target, chunkPos);
+                lastChunkPos = chunkPos;
+            }
+
+            lastChunk.set(mutablePos.getX() & 15, mutablePos.getY() & 15, mutablePos.getZ() & 15, this.transformedBlock(state));
+        }
+    }
+
+    private void transformPermuted(MapChunk chunk, Long2ObjectMap<MapChunk> target, int[] permutation, int minX, int minY, int minZ) {
+        var destChunks = this.destChunks;
+        Arrays.fill(destChunks, null);
+
+        int offsetX = minX & 15;
+        int offsetY = minY & 15;
+        int offsetZ = minZ & 15;
+
+        for (int index = 0; index < permutation.length; index++) {
+            var state = chunk.get(index & 15, index >> 8, index >> 4 & 15);
+            if (state.isAir()) {
+                continue;
+            }
+
+            int destIndex = permutation[index];
+            int x = (destIndex & 15) + offsetX;
+            int y = (destIndex >> 8) + offsetY;
+            int z = (destIndex >> 4 & 15) + offsetZ;
+
+            int corner = x >> 4 | (y >> 4) << 1 | (z >> 4) << 2;
+            var destChunk = destChunks[corner];
+            if (destChunk == null) {
+                long destPos = SectionPos.asLong((minX >> 4) + (x >> 4), (minY >> 4) + (y >> 4), (minZ >> 4) + (z >> 4));
+                destChunk = destChunks[corner] = getOrCreateChunk(target, destPos);
+            }
+
+            destChunk.set(x & 15, y & 15, z & 15, this.transformedBlock(state));
+        }
+    }
+
+    /**
+     * Transforms the block entities of the given section and writes copies of them into the given destination
+     * sections, creating them where needed.
+     */
+    void transformBlockEntities(MapChunk chunk, Long2ObjectMap<MapChunk> target) {
+        if (!chunk.hasBlockEntities()) {
+            return;
+        }
+
+        var origin = chunk.getPos().origin();
+        var mutablePos = this.mutablePos;
+
+        for (var entry : Int2ObjectMaps.fastIterable(chunk.getBlockEntities())) {
+            int index = entry.getIntKey();
+            mutablePos.setWithOffset(origin, index & 15, index >> 8, index >> 4 & 15);
+            this.transform.transformPoint(mutablePos);
+
+            var nbt = entry.getValue().copy();
+            nbt.putInt("x", mutablePos.getX());
+            nbt.putInt("y", mutablePos.getY());
+            nbt.putInt("z", mutablePos.getZ());
+
+            var destChunk = getOrCreateChunk(target, MapTemplate.chunkPos(mutablePos));
+            destChunk.setBlockEntityNbt(mutablePos.getX() & 15, mutablePos.getY() & 15, mutablePos.getZ() & 15, nbt);
+        }
+    }
+
+    private BlockState transformedBlock(BlockState state) {
+        var result = this.states.get(state);
+        if (result == null) {
+            result = this.transform.transformedBlock(state);
+            this.states.put(state, result);
+        }
+        return result;
+    }
+
+    private static MapChunk getOrCreateChunk(Long2ObjectMap<MapChunk> chunks, long pos) {
+        var chunk = chunks.get(pos);
+        if (chunk == null) {
+            chunks.put(pos, chunk = new MapChunk(SectionPos.of(pos)));
+        }
+        return chunk;
+    }
+}
@@ -0,0 +1,145 @@
+package xyz.nucleoid.map_templates;
+
+import com.mojang.logging.LogUtils;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.util.ProblemReporter;
+import net.minecraft.world.entity.Entity;
+import net.minecraft.world.entity.player.Player;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.PalettedContainer;
+import net.minecraft.world.level.storage.TagValueOutput;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A snapshot of a world area, taken on the server thread and built into a {@link MapTemplate} later.
+ * <p>
+ * Taking the snapshot only copies the block containers of the world sections and serializes the block entities and
+ * entities, which read live world state. Building the template from the snapshot doesn't touch the world, so it can
+ * run on any thread. Sections fully covered by the bounds are adopted as they are, and only the sections at the edges
+ * of the bounds are copied block by block.
+ */
+final class TemplateCapture {
+    private static final Logger LOGGER = LogUtils.getLogger();
+
+    private final BlockBounds bounds;
+    private final List<Section> sections = new ArrayList<>();
+    private final Long2ObjectMap<CompoundTag> blockEntities = new Long2ObjectOpenHashMap<>();
+    private final List<MapEntity> entities = new ArrayList<>();
+
+    private TemplateCapture(BlockBounds bounds) {
+        this.bounds = bounds;
+    }
+
+    /**
+     * Takes a snapshot of the given world area. This must be called on the server thread.
+     *
+     * @param world the world to capture
+     * @param bounds the world bounds to capture
+     * @return the snapshot
+     */
+    static TemplateCapture snapshot(ServerLevel world, BlockBounds bounds) {
+        var capture = new TemplateCapture(bounds);
+
+        var min = bounds.min();
+        var max = bounds.max();
+
+        for (int chunkZ = min.getZ() >> 4; chunkZ <= max.getZ() >> 4; chunkZ++) {
+            for (int chunkX = min.getX() >> 4; chunkX <= max.getX() >> 4; chunkX++) {
+                var chunk = world.getChunk(chunkX, chunkZ);
+
+                for (int chunkY = min.getY() >> 4; chunkY <= max.getY() >> 4; chunkY++) {
+                    int sectionIndex = chunk.getSectionIndexFromSectionY(chunkY);
+                    if (sectionIndex < 0 || sectionIndex >= chunk.getSectionsCount()) {
+                        continue;
+                    }
+
+                    var section = chunk.getSection(sectionIndex);
+                    if (!section.hasOnlyAir()) {
+                        capture.sections.add(new Section(SectionPos.asLong(chunkX, chunkY, chunkZ), section.getStates().copy()));
+                    }
+                }
+
+                for (var blockEntity : chunk.getBlockEntities().values()) {
+                    var pos = blockEntity.getBlockPos();
+                    if (blockEntity.isRemoved() || !bounds.contains(pos)) {
+                        continue;
+                    }
+
+                    try (var errorReporter = new ProblemReporter.ScopedCollector(blockEntity.problemPath(), LOGGER)) {
+                        var view = TagValueOutput.createWithContext(errorReporter, world.registryAccess());
+                        blockEntity.saveWithId(view);
+
+                        capture.blockEntities.put(pos.asLong(), view.buildResult());
+                    }
+                }
+            }
+        }
+
+        for (var entity : world.getEntities((Entity) null, bounds.asBox(), entity -> !(entity instanceof Player))) {
+            var mapEntity = MapEntity.fromEntity(entity, entity.position());
+            if (mapEntity != null) {
+                capture.entities.add(mapEntity);
+            }
+        }
+
+        return capture;
+    }
+
+    /**
+     * Builds a template from this snapshot, with everything at its world position. This may be called on any thread.
+     *
+     * @return the captured template
+     */
+    MapTemplate build() {
+        var template = MapTemplate.createEmpty();
+
+        for (var section : this.sections) {
+            var clip = SectionClip.of(this.bounds, SectionPos.of(section.pos()));
+            var chunk = template.getOrCreateChunk(section.pos());
+
+            if (clip.coversSection()) {
+                chunk.setContainer(section.states());
+            } else {
+                var states = section.states();
+                for (int y = clip.minY(); y <= clip.maxY(); y++) {
+                    for (int z = clip.minZ(); z <= clip.maxZ(); z++) {
+                        for (int x = clip.minX(); x <= clip.maxX(); x++) {
+                            var state = states.get(x, y, z);
+                            if (!state.isAir()) {
+                                chunk.set(x, y, z, state);
+                            }
+                        }
+                    }
+                }
+            }
+
+            if (chunk.isEmpty()) {
+                template.chunks.remove(section.pos());
+            }
+        }
+
+        for (var entry : Long2ObjectMaps.fastIterable(this.blockEntities)) {
+            template.setBlockEntityNbt(BlockPos.of(entry.getLongKey()), entry.getValue());
+        }
+
+        for (var entity : this.entities) {
+            template.addEntity(entity);
+        }
+
+        template.setBounds(this.bounds);
+
+        return template;
+    }
+
+    private record Section(long pos, PalettedContainer<BlockState> states) {
+    }
+}
@@ -0,0 +1,119 @@
+package xyz.nucleoid.map_templates;
+
+import net.minecraft.world.level.levelgen.Heightmap;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lazily built top-Y index over the XZ footprint of a {@link MapTemplate}, with one packed column array per
+ * {@link Heightmap.Types}.
+ * <p>
+ * Columns start out unknown and are computed on their first lookup. Edits through the template only invalidate the
+ * columns that they touch, while writes to chunks that were handed out by the template drop the whole index, as
+ * tracked by {@link #modCount}.
+ * <p>
+ * Lookups may race with each other, since a column always resolves to the same value while the template is not
+ * being modified. This lets frozen templates be read from multiple threads without locking.
+ */
+final class TemplateHeightmaps {
+    private static final int UNKNOWN = Integer.MIN_VALUE;
+
+    // Footprints larger than this are not indexed, to avoid allocating huge column arrays for sparse templates
+    private static final long MAX_COLUMNS = 1L << 22;
+
+    private final BlockBounds bounds;
+    private final int minX;
+    private final int minZ;
+    private final int sizeX;
+    private final int sizeZ;
+    private final boolean indexed;
+
+    private static final Heightmap.Types[] TYPES = Heightmap.Types.values();
+
+    private final AtomicReferenceArray<int[]> columns = new AtomicReferenceArray<>(TYPES.length);
+
+    // The chunk modification count of the template that this index is up to date with
+    int modCount;
+
+    TemplateHeightmaps(BlockBounds bounds, int modCount) {
+        this.bounds = bounds;
+        this.modCount = modCount;
+        this.minX = bounds.min().getX();
+        this.minZ = bounds.min().getZ();
+        this.sizeX = bounds.max().getX() - this.minX + 1;
+        this.sizeZ = bounds.max().getZ() - this.minZ + 1;
+        this.indexed = (long) this.sizeX * this.sizeZ <= MAX_COLUMNS;
+    }
+
+    BlockBounds bounds() {
+        return this.bounds;
+    }
+
+    int getTopY(MapTemplate template, int x, int z, Heightmap.Types heightmap) {
+        if (!this.indexed || !this.bounds.contains(x, z)) {
+            return template.scanTopY(x, z, heightmap, this.bounds.min().getY(), this.bounds.max().getY());
+        }
+
+        var columns = this.columns.get(heightmap.ordinal());
+        if (columns == null) {
+            columns = new int[this.sizeX * this.sizeZ];
+            Arrays.fill(columns, UNKNOWN);
+            if (!this.columns.compareAndSet(heightmap.ordinal(), null, columns)) {
+                columns = this.columns.get(heightmap.ordinal());
+            }
+        }
+
+        int index = this.index(x, z);
+        int y = columns[index];
+        if (y == UNKNOWN) {
+            columns[index] = y = template.scanTopY(x, z, heightmap, this.bounds.min().getY(), this.bounds.max().getY());
+        }
+
+        return y;
+    }
+
+    void invalidateColumn(int x, int z) {
+        if (!this.indexed || !this.bounds.contains(x, z)) {
+            return;
+        }
+
+        int index = this.index(x, z);
+        for (int i = 0; i < TYPES.length; i++) {
+            var columns = this.columns.get(i);
+            if (columns != null) {
+                columns[index] = UNKNOWN;
+            }
+        }
+    }
+
+    void invalidateChunk(int chunkX, int chunkZ) {
+        if (!this.indexed) {
+            return;
+        }
+
+        int minX = Math.max(chunkX << 4, this.minX);
+        int minZ = Math.max(chunkZ << 4, this.minZ);
+        int maxX = Math.min((chunkX << 4) + 15, this.minX + this.sizeX - 1);
+        int maxZ = Math.min((chunkZ << 4) + 15, this.minZ + this.sizeZ - 1);
+        if (minX > maxX || minZ > maxZ) {
+            return;
+        }
+
+        for (int i = 0; i < TYPES.length; i++) {
+            var columns = this.columns.get(i);
+            if (columns == null) {
+                continue;
+            }
+
+            for (int z = minZ; z <= maxZ; z++) {
+                int start = this.index(minX, z);
+                Arrays.fill(columns, start, start + (maxX - minX + 1), UNKNOWN);
+            }
+        }
+    }
+
+    private int index(int x, int z) {
+        return (z - this.minZ) * this.sizeX + (x - this.minX);
+    }
+}
@@ -5,7 +5,9 @@ import net.minecraft.nbt.CompoundTag;
 public final class TemplateRegion {
     private final String marker;
     private final BlockBounds bounds;
-    private CompoundTag data;
+    CompoundTag data;
+
+    private boolean frozen;
 
     public TemplateRegion(String marker, BlockBounds bounds, CompoundTag data) {
         this.marker = marker;
@@ -22,7 +24,8 @@ public final class TemplateRegion {
     }
 
     /**
-     * Returns the extra data assigned to this region.
+     * Returns the extra data assigned to this region. The data of a region of a frozen template is shared between
+     * every reader without being copied, so it must not be modified.
      *
      * @return the extra data
      */
@@ -34,11 +37,19 @@ public final class TemplateRegion {
      * Sets the extra data assigned to this region.
      *
      * @param data the extra data
+     * @throws IllegalStateException if this region belongs to a frozen template
      */
     public void setData(CompoundTag data) {
+        if (this.frozen) {
+            throw new IllegalStateException("Cannot modify region " + this.marker + " of a frozen map template");
+        }
         this.data = data;
     }
 
+    void freeze() {
+        this.frozen = true;
+    }
+
     public CompoundTag serialize(CompoundTag nbt) {
         nbt.putString("marker", this.marker);
         this.bounds.serialize(nbt);